@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+/**
+ * Receives the minute alarms of the API 16 TextView clock and pushes the new time texts
+ * directly, without going through ClockWidgetService.
+ *
+ * While the screen is off nobody can see the clock, so the repeating alarm is replaced by a
+ * non wakeup WakeupPlanner job for the next minute. When the screen turns on again,
+ * WidgetApplication refreshes the clock right away and restarts the repeating alarm.
+ */
+public class ClockTickReceiver extends BroadcastReceiver {
+    private static final String TAG = "ClockTickReceiver";
+    private static final boolean D = Constants.DEBUG;
+
+    static final String EXTRA_REPEATING = "repeating";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        onClockTick(context, intent.getBooleanExtra(EXTRA_REPEATING, false));
+    }
+
+    /**
+     * Handle a minute tick, from the repeating alarm or from the WakeupPlanner
+     */
+    static void onClockTick(Context context, boolean repeating) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        if (!pm.isScreenOn()) {
+            if (D) Log.v(TAG, "Clock tick while the screen is off, suspending clock refresh");
+            WidgetApplication.scheduleClockRefresh(context, false);
+            return;
+        }
+
+        if (D) Log.d(TAG, "Clock tick event received");
+        ClockWidgetService.refreshClockText(context);
+        if (!repeating) {
+            WidgetApplication.scheduleClockRefresh(context, true);
+        }
+    }
+}
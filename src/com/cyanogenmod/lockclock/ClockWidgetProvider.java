@@ -21,9 +21,11 @@ import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
 import com.cyanogenmod.lockclock.ClockWidgetService;
@@ -37,7 +39,25 @@ public class ClockWidgetProvider extends AppWidgetProvider {
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         // Default handling, triggered via the super class
         if (D) Log.v(TAG, "Updating widgets, default handling.");
-        updateWidgets(context, false, false);
+        // The host asked for the full views, don't send it partial updates only
+        ClockWidgetService.invalidateRenderState(appWidgetIds);
+        updateWidgets(context, ClockWidgetService.ACTION_REFRESH);
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
+            int appWidgetId, Bundle newOptions) {
+        // The widget was resized, the refresh triggered by onReceive() picks up the new layout
+        if (D) Log.v(TAG, "Options of widget " + appWidgetId + " changed");
+        WidgetUtils.invalidateWidgetLayout(appWidgetId);
+    }
+
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        ClockWidgetService.invalidateRenderState(appWidgetIds);
+        for (int id : appWidgetIds) {
+            WidgetUtils.invalidateWidgetLayout(id);
+        }
     }
 
     @Override
@@ -63,49 +83,66 @@ public class ClockWidgetProvider extends AppWidgetProvider {
 
         // Boot completed, schedule next weather update
         } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            // Alarms don't survive a reboot, set them again for the stored jobs
+            WakeupPlanner.rescheduleAlarms(context);
             WeatherUpdateService.scheduleNextUpdate(context);
+            if (!WidgetUtils.isTextClockAvailable()) {
+                // Alarms don't survive a reboot
+                WidgetApplication.startClockRefresh(context);
+            }
 
         // A widget has been deleted, prevent our handling and ask the super class handle it
         } else if (AppWidgetManager.ACTION_APPWIDGET_DELETED.equals(action)
                 || AppWidgetManager.ACTION_APPWIDGET_DISABLED.equals(action)) {
             super.onReceive(context, intent);
 
-        // Calendar, Time or a settings change, force a calendar refresh
-        } else if (Intent.ACTION_PROVIDER_CHANGED.equals(action)
-                || Intent.ACTION_TIME_CHANGED.equals(action)
+        // Time or locale change, refresh everything including the calendar
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action)
                 || Intent.ACTION_TIMEZONE_CHANGED.equals(action)
                 || Intent.ACTION_DATE_CHANGED.equals(action)
-                || Intent.ACTION_LOCALE_CHANGED.equals(action)
-                || "android.intent.action.ALARM_CHANGED".equals(action)
+                || Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            // The cached formatters may no longer match the locale, time zone or time format
+            FormatterCache.invalidate();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                // Localized strings outside of the tracked render state need to be pushed again
+                ClockWidgetService.invalidateRenderState();
+            }
+            if (!WidgetUtils.isTextClockAvailable()) {
+                // Align the clock refresh to the new minute boundary
+                WidgetApplication.startClockRefresh(context);
+            }
+            // The service merges both requests into a single pass
+            updateWidgets(context, ClockWidgetService.ACTION_REFRESH);
+            updateWidgets(context, ClockWidgetService.ACTION_REFRESH_CALENDAR);
+
+        // Calendar or calendar settings change, only the calendar panel needs a refresh
+        } else if (Intent.ACTION_PROVIDER_CHANGED.equals(action)
                 || ClockWidgetService.ACTION_REFRESH_CALENDAR.equals(action)) {
-            updateWidgets(context, true, false);
+            updateWidgets(context, ClockWidgetService.ACTION_REFRESH_CALENDAR);
+
+        // Next alarm change, only the alarm panel needs a refresh
+        } else if ("android.intent.action.ALARM_CHANGED".equals(action)) {
+            updateWidgets(context, ClockWidgetService.ACTION_REFRESH_ALARM);
 
         // There are no events to show in the Calendar panel, hide it explicitly
         } else if (ClockWidgetService.ACTION_HIDE_CALENDAR.equals(action)) {
-            updateWidgets(context, false, true);
+            updateWidgets(context, ClockWidgetService.ACTION_HIDE_CALENDAR);
 
         // Something we did not handle, let the super class deal with it.
         // This includes the REFRESH_CLOCK intent from Clock settings
         } else {
             if (D) Log.v(TAG, "We did not handle the intent, trigger normal handling");
             super.onReceive(context, intent);
-            updateWidgets(context, false, false);
+            updateWidgets(context, ClockWidgetService.ACTION_REFRESH);
         }
     }
 
     /**
-     *  Update the widget via the service.
+     *  Update the widget via the service, the action selects the panels to refresh
      */
-    private void updateWidgets(Context context, boolean refreshCalendar, boolean hideCalendar) {
-        // Build the intent and pass on the weather and calendar refresh triggers
+    private void updateWidgets(Context context, String action) {
         Intent i = new Intent(context.getApplicationContext(), ClockWidgetService.class);
-        if (refreshCalendar) {
-            i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
-        } else if (hideCalendar) {
-            i.setAction(ClockWidgetService.ACTION_HIDE_CALENDAR);
-        } else {
-            i.setAction(ClockWidgetService.ACTION_REFRESH);
-        }
+        i.setAction(action);
 
         // Start the service. The service itself will take care of scheduling refreshes if needed
         if (D) Log.d(TAG, "Starting the service to update the widgets...");
@@ -117,12 +154,10 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         if (D) Log.d(TAG, "Scheduling next weather update");
         WeatherUpdateService.scheduleNextUpdate(context);
 
-        // Start the broadcast receiver (API 16 devices)
-        // This will schedule a repeating alarm every minute to handle the clock refresh
-        // Once triggered, the receiver will unregister itself when its work is done
+        // Start the clock refresh (API 16 devices)
+        // This will schedule a repeating alarm on every minute boundary to handle the clock refresh
         if (!WidgetUtils.isTextClockAvailable()) {
-            final WidgetApplication app = (WidgetApplication) context.getApplicationContext();
-            app.startTickReceiver();
+            WidgetApplication.startClockRefresh(context);
         }
     }
 
@@ -131,6 +166,8 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         if (D) Log.d(TAG, "Cleaning up: Clearing all pending alarms");
         ClockWidgetService.cancelUpdates(context);
         WeatherUpdateService.cancelUpdates(context);
+        ClockWidgetService.invalidateRenderState();
+        WidgetUtils.invalidateWidgetLayouts();
 
         // Stop the clock update event (API 16 devices)
         if (!WidgetUtils.isTextClockAvailable()) {
@@ -16,35 +16,40 @@
 
 package com.cyanogenmod.lockclock;
 
-import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
-import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
-import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
-import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.View;
 import android.widget.RemoteViews;
 
+import com.cyanogenmod.lockclock.WidgetRenderState.AlarmState;
+import com.cyanogenmod.lockclock.WidgetRenderState.CalendarState;
+import com.cyanogenmod.lockclock.WidgetRenderState.ClockState;
+import com.cyanogenmod.lockclock.WidgetRenderState.WeatherState;
 import com.cyanogenmod.lockclock.calendar.CalendarWidgetService;
 import com.cyanogenmod.lockclock.misc.Constants;
-import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
+import com.cyanogenmod.lockclock.misc.PreferenceSnapshot;
+import com.cyanogenmod.lockclock.misc.WidgetLayout;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.weather.WeatherInfo;
+import com.cyanogenmod.lockclock.weather.WeatherRepository;
 import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 public class ClockWidgetService extends IntentService {
     private static final String TAG = "ClockWidgetService";
@@ -53,10 +58,31 @@ public class ClockWidgetService extends IntentService {
     public static final String ACTION_REFRESH = "com.cyanogenmod.lockclock.action.REFRESH_WIDGET";
     public static final String ACTION_REFRESH_CALENDAR = "com.cyanogenmod.lockclock.action.REFRESH_CALENDAR";
     public static final String ACTION_HIDE_CALENDAR = "com.cyanogenmod.lockclock.action.HIDE_CALENDAR";
+    public static final String ACTION_REFRESH_CLOCK = "com.cyanogenmod.lockclock.action.REFRESH_CLOCK";
+    public static final String ACTION_REFRESH_ALARM = "com.cyanogenmod.lockclock.action.REFRESH_ALARM";
+    public static final String ACTION_REFRESH_WEATHER = "com.cyanogenmod.lockclock.action.REFRESH_WEATHER";
+
+    // Requests arriving within this time after the first one are handled in the same pass
+    private static final long REFRESH_DELAY_MS = 250;
+
+    // Partial updates are not kept by the host, a widget it rebuilds falls back to the
+    // last full update. Do a full update at least this often to limit how stale that is.
+    private static final long FULL_UPDATE_INTERVAL_MS = 60 * 60 * 1000;
+
+    private static final RefreshScheduler sScheduler = new RefreshScheduler();
 
     // This needs to be static to persist between refreshes until explicitly changed by an intent
     private static boolean mHideCalendar = false;
 
+    // The last state pushed to each widget id, static to persist between service instances
+    private static final SparseArray<WidgetRenderState> sRenderStates =
+            new SparseArray<WidgetRenderState>();
+
+    // Held while a widget's state is read, rendered, pushed and stored. Serializes the
+    // service passes with publishWeather() and refreshClockText(), so none of them can push
+    // older data after another one.
+    private static final Object sRenderLock = new Object();
+
     private int[] mWidgetIds;
     private AppWidgetManager mAppWidgetManager;
 
@@ -73,143 +99,261 @@ public class ClockWidgetService extends IntentService {
         mWidgetIds = mAppWidgetManager.getAppWidgetIds(thisWidget);
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Record the request right away, so it can be merged into an already queued pass
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_HIDE_CALENDAR.equals(action)) {
+            sScheduler.request(WidgetRenderState.PANEL_CALENDAR, RefreshScheduler.FLAG_HIDE_CALENDAR);
+        } else if (ACTION_REFRESH_CALENDAR.equals(action)) {
+            sScheduler.request(WidgetRenderState.PANEL_CALENDAR, RefreshScheduler.FLAG_REFRESH_CALENDAR);
+        } else if (ACTION_REFRESH_CLOCK.equals(action)) {
+            sScheduler.request(WidgetRenderState.PANEL_CLOCK, 0);
+        } else if (ACTION_REFRESH_ALARM.equals(action)) {
+            sScheduler.request(WidgetRenderState.PANEL_ALARM, 0);
+        } else if (ACTION_REFRESH_WEATHER.equals(action)) {
+            sScheduler.request(WidgetRenderState.PANEL_WEATHER, 0);
+        } else {
+            sScheduler.request(WidgetRenderState.PANEL_ALL, 0);
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
         if (D) Log.d(TAG, "Got intent " + intent);
 
+        if (!sScheduler.hasPending()) {
+            if (D) Log.v(TAG, "Request already handled by an earlier pass");
+            return;
+        }
+
+        // Give the rest of a burst of requests the chance to arrive
+        SystemClock.sleep(REFRESH_DELAY_MS);
+        RefreshScheduler.Request request = sScheduler.take();
+
         if (mWidgetIds != null && mWidgetIds.length != 0) {
             // Check passed in intents
-            if (intent != null) {
-                if (ACTION_HIDE_CALENDAR.equals(intent.getAction())) {
-                    if (D) Log.v(TAG, "Force hiding the calendar panel");
-                    // Explicitly hide the panel since we received a broadcast indicating no events
-                    mHideCalendar = true;
-                } else if (ACTION_REFRESH_CALENDAR.equals(intent.getAction())) {
-                    if (D) Log.v(TAG, "Forcing a calendar refresh");
-                    // Start with the panel not explicitly hidden
-                    // If there are no events, a broadcast to the service will hide the panel
-                    mHideCalendar = false;
-                    mAppWidgetManager.notifyAppWidgetViewDataChanged(mWidgetIds, R.id.calendar_list);
-                }
+            if (request.hasFlag(RefreshScheduler.FLAG_REFRESH_CALENDAR)) {
+                if (D) Log.v(TAG, "Forcing a calendar refresh");
+                // Start with the panel not explicitly hidden
+                // If there are no events, a broadcast to the service will hide the panel
+                mHideCalendar = false;
+                mAppWidgetManager.notifyAppWidgetViewDataChanged(mWidgetIds, R.id.calendar_list);
+            }
+            if (request.hasFlag(RefreshScheduler.FLAG_HIDE_CALENDAR)) {
+                if (D) Log.v(TAG, "Force hiding the calendar panel");
+                // Explicitly hide the panel since we received a broadcast indicating no events
+                mHideCalendar = true;
             }
-            refreshWidget();
+            refreshWidget(request.panels);
+        }
+        if (D) Log.v(TAG, "Refresh done, " + sScheduler);
+    }
+
+    private static boolean isFullUpdateDue(WidgetRenderState state, long now) {
+        return now - state.fullUpdateTime >= FULL_UPDATE_INTERVAL_MS;
+    }
+
+    /**
+     * Forget the last pushed render state of all widgets, forcing a full update on the next refresh
+     */
+    public static void invalidateRenderState() {
+        synchronized (sRenderStates) {
+            sRenderStates.clear();
         }
     }
 
     /**
-     * Reload the widget including the Weather forecast, Alarm, Clock font and Calendar
+     * Forget the last pushed render state of the given widgets
      */
-    private void refreshWidget() {
+    public static void invalidateRenderState(int[] appWidgetIds) {
+        synchronized (sRenderStates) {
+            for (int id : appWidgetIds) {
+                sRenderStates.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Reload the given panels of the widget, the Weather forecast, Alarm, Clock font and Calendar.
+     * Other panels keep their last pushed state, unless the widget needs a full update.
+     */
+    private void refreshWidget(int panels) {
         // Get things ready
-        RemoteViews remoteViews;
-        boolean digitalClock = Preferences.showDigitalClock(this);
-        boolean showWeather = Preferences.showWeather(this);
-        boolean showWeatherWhenMinimized = Preferences.showWeatherWhenMinimized(this);
+        final PreferenceSnapshot prefs = PreferenceSnapshot.get(this);
+        boolean digitalClock = prefs.showDigitalClock;
+        boolean showWeather = prefs.showWeather;
+        boolean showWeatherWhenMinimized = prefs.showWeatherWhenMinimized;
 
         // Update the widgets
         for (int id : mWidgetIds) {
             boolean showCalendar = false;
 
-            // Determine if its a home or a lock screen widget
-            Bundle myOptions = mAppWidgetManager.getAppWidgetOptions (id);
-            boolean isKeyguard = false;
-            if (WidgetUtils.isTextClockAvailable()) {
-                // This is only available on API 17+, make sure we are not calling it on API16
-                // This generates an API level Lint warning, ignore it
-                int category = myOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
-                isKeyguard = category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
-            }
-            if (D) Log.d("TAG", "For Widget id " + id + " isKeyguard is set to " + isKeyguard);
+            // The layout decisions only change with the widget options
+            WidgetLayout layout = WidgetUtils.getWidgetLayout(this, id, digitalClock);
 
             // Determine which layout to use
             boolean smallWidget = showWeather && showWeatherWhenMinimized
-                    && WidgetUtils.showSmallWidget(this, id, digitalClock, isKeyguard);
+                    && layout.fitsSmallWidgetOnly;
             if (smallWidget) {
                 // The small widget is only shown if weather needs to be shown
                 // and there is not enough space for the full weather widget and
                 // the user had selected to show the weather when minimized (default ON)
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget_small);
                 showCalendar = false;
             } else {
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget);
                 // show calendar if enabled and events available and enough space available
-                showCalendar = Preferences.showCalendar(this) && !mHideCalendar
-                        && WidgetUtils.canFitCalendar(this, id, digitalClock);
+                showCalendar = prefs.showCalendar && !mHideCalendar && layout.canFitCalendar;
             }
 
-            // Hide the Loading indicator
-            remoteViews.setViewVisibility(R.id.loading_indicator, View.GONE);
+            boolean canFitWeather = smallWidget || layout.canFitWeather;
+            float scale = layout.scale;
 
-            // Always Refresh the Clock widget
-            refreshClock(remoteViews, smallWidget, digitalClock);
-            refreshAlarmStatus(remoteViews, smallWidget);
+            synchronized (sRenderLock) {
+                // Read under the lock, so older data can't overwrite data published meanwhile
+                WeatherInfo weatherInfo = showWeather ? WeatherRepository.getWeatherInfo(this) : null;
+                WidgetRenderState lastState;
+                synchronized (sRenderStates) {
+                    lastState = sRenderStates.get(id);
+                }
+                final long now = SystemClock.elapsedRealtime();
+                boolean fullUpdate = lastState == null || lastState.smallWidget != smallWidget
+                        || isFullUpdateDue(lastState, now);
+                int widgetPanels = fullUpdate ? WidgetRenderState.PANEL_ALL : panels;
+
+                WidgetRenderState state = new WidgetRenderState(smallWidget,
+                        (widgetPanels & WidgetRenderState.PANEL_CLOCK) != 0
+                                ? buildClockState(prefs, smallWidget, digitalClock, scale)
+                                : lastState.clock,
+                        (widgetPanels & WidgetRenderState.PANEL_ALARM) != 0
+                                ? buildAlarmState(prefs) : lastState.alarm,
+                        (widgetPanels & WidgetRenderState.PANEL_WEATHER) != 0
+                                ? buildWeatherState(prefs, weatherInfo, showWeather && canFitWeather)
+                                : lastState.weather,
+                        (widgetPanels & WidgetRenderState.PANEL_CALENDAR) != 0
+                                ? buildCalendarState(prefs, showCalendar) : lastState.calendar,
+                        fullUpdate ? now : lastState.fullUpdateTime);
+
+                int changed = fullUpdate ? WidgetRenderState.PANEL_ALL : state.diff(lastState);
+                if (changed == 0) {
+                    if (D) Log.v(TAG, "Widget " + id + " is up to date, skipping update");
+                    continue;
+                }
 
-            // Refresh the time if using TextView Clock (API 16)
-            if(!WidgetUtils.isTextClockAvailable()) {
-                refreshTime(remoteViews, smallWidget);
-            }
+                RemoteViews remoteViews = new RemoteViews(getPackageName(),
+                        smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+                if (fullUpdate) {
+                    // Hide the Loading indicator
+                    remoteViews.setViewVisibility(R.id.loading_indicator, View.GONE);
+                }
 
-            // Don't bother with Calendar if its not visible
-            if (showCalendar) {
-                refreshCalendar(remoteViews, id);
-            }
-            // Hide the calendar panel if not visible
-            remoteViews.setViewVisibility(R.id.calendar_panel, showCalendar ? View.VISIBLE : View.GONE);
-
-            boolean canFitWeather = smallWidget || WidgetUtils.canFitWeather(this, id, digitalClock, isKeyguard);
-            // Now, if we need to show the actual weather, do so
-            if (showWeather && canFitWeather) {
-                WeatherInfo weatherInfo = Preferences.getCachedWeatherInfo(this);
-
-                if (weatherInfo != null) {
-                    setWeatherData(remoteViews, smallWidget, weatherInfo);
-
-                    // AQI info
-                    String aqiInfo = weatherInfo.getAqiInfo();
-                    if (TextUtils.isEmpty(aqiInfo)) {
-                        remoteViews.setViewVisibility(R.id.aqi_info_panel, View.GONE);
-                    } else {
-                        int aqiInfoTextColor = Preferences.weatherFontColor(this);
-                        int aqiInfoTextBg = 0;
-
-                        int[] aqiInfoColors = weatherInfo.getAqiLevelColors();
-                        if (aqiInfoColors != null && aqiInfoColors.length == 2) {
-                            aqiInfoTextColor = aqiInfoColors[0];
-                            aqiInfoTextBg = aqiInfoColors[1];
-                        }
-
-                        remoteViews.setTextViewText(R.id.aqi_info, aqiInfo);
-                        remoteViews.setTextColor(R.id.aqi_info, aqiInfoTextColor);
-                        remoteViews.setInt(R.id.aqi_info, "setBackgroundColor", aqiInfoTextBg);
-                        remoteViews.setViewVisibility(R.id.aqi_info_panel, View.VISIBLE);
+                if ((changed & WidgetRenderState.PANEL_CLOCK) != 0) {
+                    refreshClock(remoteViews, state);
+                }
+                if ((changed & WidgetRenderState.PANEL_ALARM) != 0) {
+                    refreshAlarmStatus(remoteViews, state);
+                }
+                if ((changed & WidgetRenderState.PANEL_CALENDAR) != 0) {
+                    // Don't bother with Calendar if its not visible
+                    if (state.calendar.visible) {
+                        refreshCalendar(remoteViews, id, state.calendar);
                     }
+                    // Hide the calendar panel if not visible
+                    remoteViews.setViewVisibility(R.id.calendar_panel,
+                            state.calendar.visible ? View.VISIBLE : View.GONE);
+                }
+                if ((changed & WidgetRenderState.PANEL_WEATHER) != 0) {
+                    refreshWeather(this, remoteViews, state);
+                }
+
+                // Do the update, only sending the changed panels if the host already has the layout
+                if (D) Log.d(TAG, "Updating widget " + id + ", full = " + fullUpdate + ", panels = " + changed);
+                if (fullUpdate) {
+                    mAppWidgetManager.updateAppWidget(id, remoteViews);
                 } else {
-                    setNoWeatherData(remoteViews, smallWidget);
-                    // AQI info
-                    remoteViews.setViewVisibility(R.id.aqi_info_panel, View.GONE);
+                    mAppWidgetManager.partiallyUpdateAppWidget(id, remoteViews);
+                }
+                sScheduler.onWidgetRendered();
+                synchronized (sRenderStates) {
+                    // Don't bring back a state that was invalidated in the meantime
+                    if (sRenderStates.get(id) == lastState) {
+                        sRenderStates.put(id, state);
+                    }
                 }
             }
-            remoteViews.setViewVisibility(R.id.weather_panel, (showWeather && canFitWeather) ? View.VISIBLE : View.GONE);
+        }
+    }
 
-            // Resize the clock font if needed
-            if (digitalClock) {
-                float ratio = WidgetUtils.getScaleRatio(this, id);
-                setClockSize(remoteViews, ratio);
+    //===============================================================================================
+    // Render state construction
+    //===============================================================================================
+    private ClockState buildClockState(PreferenceSnapshot prefs, boolean smallWidget, boolean digitalClock, float scale) {
+        final FormatterCache formatters = FormatterCache.get(this);
+        final Date now = new Date();
+        String amPm = getAmPm(prefs, formatters, digitalClock, now);
+
+        // Compute the time if using TextView Clock (API 16)
+        CharSequence hours = null, minutes = null, date = null;
+        if (!WidgetUtils.isTextClockAvailable()) {
+            date = formatters.formatDate(now);
+            hours = formatters.formatHours(now);
+            minutes = formatters.formatMinutes(now);
+        }
+
+        return new ClockState(digitalClock, prefs.clockFontColor, prefs.useBoldFontForHours,
+                prefs.useBoldFontForMinutes, prefs.useBoldFontForDateAndAlarms, amPm, scale,
+                hours, minutes, date);
+    }
+
+    private static String getAmPm(PreferenceSnapshot prefs, FormatterCache formatters,
+            boolean digitalClock, Date now) {
+        if (digitalClock && !formatters.is24HourFormat() && prefs.showAmPmIndicator) {
+            return formatters.formatAmPm(now);
+        }
+        return null;
+    }
+
+    private AlarmState buildAlarmState(PreferenceSnapshot prefs) {
+        String nextAlarm = null;
+        if (prefs.showAlarm) {
+            nextAlarm = getNextAlarm();
+            if (nextAlarm != null) {
+                nextAlarm = nextAlarm.toUpperCase(Locale.getDefault());
             }
+        }
+        return new AlarmState(nextAlarm, prefs.clockAlarmFontColor,
+                prefs.useBoldFontForDateAndAlarms);
+    }
 
-            // Do the update
-            mAppWidgetManager.updateAppWidget(id, remoteViews);
+    private WeatherState buildWeatherState(PreferenceSnapshot prefs, WeatherInfo info,
+            boolean visible) {
+        if (!visible) {
+            return new WeatherState(false, null, 0, 0, false, false, false, false, false, null);
         }
+        return new WeatherState(true, info,
+                prefs.weatherFontColor, prefs.weatherTimestampFontColor,
+                prefs.useAlternateWeatherIcons, prefs.showWeatherLocation,
+                prefs.showWeatherTimestamp, prefs.invertLowHighTemperature,
+                FormatterCache.get(this).is24HourFormat(), TimeZone.getDefault().getID());
+    }
+
+    private CalendarState buildCalendarState(PreferenceSnapshot prefs, boolean visible) {
+        if (!visible) {
+            return new CalendarState(false, 0, false);
+        }
+        return new CalendarState(true, prefs.calendarFontColor, prefs.showCalendarIcon);
     }
 
     //===============================================================================================
     // Clock related functionality
     //===============================================================================================
-    private void refreshClock(RemoteViews clockViews, boolean smallWidget, boolean digitalClock) {
+    private void refreshClock(RemoteViews clockViews, WidgetRenderState state) {
+        final ClockState clock = state.clock;
+
         // Analog or Digital clock
-        if (digitalClock) {
+        if (clock.digitalClock) {
             // Hours/Minutes is specific to Digital, set it's size
-            refreshClockFont(clockViews, smallWidget);
+            refreshClockFont(clockViews, clock);
             clockViews.setViewVisibility(R.id.digital_clock, View.VISIBLE);
             clockViews.setViewVisibility(R.id.analog_clock, View.GONE);
         } else {
@@ -218,7 +362,17 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Date/Alarm is common to both clocks, set it's size
-        refreshDateAlarmFont(clockViews, smallWidget);
+        refreshDateAlarmFont(clockViews, state.smallWidget, clock);
+
+        // Refresh the time if using TextView Clock (API 16)
+        if (!WidgetUtils.isTextClockAvailable()) {
+            refreshTime(clockViews, state.smallWidget, clock);
+        }
+
+        // Resize the clock font if needed
+        if (clock.digitalClock) {
+            setClockSize(clockViews, clock.scale);
+        }
 
         // Register an onClickListener on Clock, starting DeskClock
         Intent i = WidgetUtils.getDefaultClockIntent(this);
@@ -229,47 +383,100 @@ public class ClockWidgetService extends IntentService {
     }
 
     // API 16 TextView Clock support
-    private void refreshTime(RemoteViews clockViews, boolean smallWidget) {
-        Locale locale = Locale.getDefault();
-        Date now = new Date();
-        String dateFormat = getString(R.string.abbrev_wday_month_day_no_year);
-        CharSequence date = DateFormat.format(dateFormat, now);
-        String hours = new SimpleDateFormat(getHourFormat(), locale).format(now);
-        String minutes = new SimpleDateFormat(getString(R.string.widget_12_hours_format_no_ampm_m),
-                locale).format(now);
-
+    private static void refreshTime(RemoteViews clockViews, boolean smallWidget, ClockState clock) {
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
-            clockViews.setTextViewText(R.id.clock1_bold, hours);
+        if (clock.boldHours) {
+            clockViews.setTextViewText(R.id.clock1_bold, clock.hours);
         } else {
-            clockViews.setTextViewText(R.id.clock1_regular, hours);
+            clockViews.setTextViewText(R.id.clock1_regular, clock.hours);
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
-            clockViews.setTextViewText(R.id.clock2_bold, minutes);
+        if (clock.boldMinutes) {
+            clockViews.setTextViewText(R.id.clock2_bold, clock.minutes);
         } else {
-            clockViews.setTextViewText(R.id.clock2_regular, minutes);
+            clockViews.setTextViewText(R.id.clock2_regular, clock.minutes);
         }
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
-                clockViews.setTextViewText(R.id.date_bold, date);
+            if (clock.boldDate) {
+                clockViews.setTextViewText(R.id.date_bold, clock.date);
             } else {
-                clockViews.setTextViewText(R.id.date_regular, date);
+                clockViews.setTextViewText(R.id.date_regular, clock.date);
             }
         } else {
-            clockViews.setTextViewText(R.id.date, date);
+            clockViews.setTextViewText(R.id.date, clock.date);
         }
     }
 
-    private void refreshClockFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
-        String amPM = new SimpleDateFormat("a", Locale.getDefault()).format(new Date());
+    /**
+     * Lightweight minute tick for the API 16 TextView clock. Only the time and date texts of
+     * widgets that already show a clock are pushed, nothing else is computed.
+     */
+    public static void refreshClockText(Context context) {
+        final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        final int[] widgetIds = appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, ClockWidgetProvider.class));
+        final PreferenceSnapshot prefs = PreferenceSnapshot.get(context);
+        final FormatterCache formatters = FormatterCache.get(context);
+        final Date now = new Date();
+
+        CharSequence hours = formatters.formatHours(now);
+        CharSequence minutes = formatters.formatMinutes(now);
+        CharSequence date = formatters.formatDate(now);
+        boolean needsRefresh = false;
+
+        for (int id : widgetIds) {
+            synchronized (sRenderLock) {
+                WidgetRenderState lastState;
+                synchronized (sRenderStates) {
+                    lastState = sRenderStates.get(id);
+                }
+                if (lastState == null) {
+                    // Nothing pushed yet or invalidated, leave it to the service
+                    needsRefresh = true;
+                    continue;
+                }
+
+                ClockState lastClock = lastState.clock;
+                String amPm = getAmPm(prefs, formatters, lastClock.digitalClock, now);
+                ClockState clock = lastClock.withTime(amPm, hours, minutes, date);
+                if (clock.equals(lastClock)) {
+                    continue;
+                }
+
+                RemoteViews clockViews = new RemoteViews(context.getPackageName(),
+                        lastState.smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+                refreshTime(clockViews, lastState.smallWidget, clock);
+                if (!TextUtils.equals(amPm, lastClock.amPm)) {
+                    // The font refresh only sets the AM/PM indicator besides what's already set
+                    refreshClockFont(clockViews, clock);
+                }
+                if (D) Log.v(TAG, "Updating clock text of widget " + id);
+                appWidgetManager.partiallyUpdateAppWidget(id, clockViews);
+                synchronized (sRenderStates) {
+                    // Don't bring back a state that was invalidated in the meantime
+                    if (sRenderStates.get(id) == lastState) {
+                        sRenderStates.put(id, lastState.withClock(clock));
+                    }
+                }
+            }
+        }
+
+        if (needsRefresh) {
+            // The service pass pushes the complete widget, as it has no state to update
+            Intent i = new Intent(context, ClockWidgetService.class);
+            i.setAction(ACTION_REFRESH_CLOCK);
+            context.startService(i);
+        }
+    }
+
+    private static void refreshClockFont(RemoteViews clockViews, ClockState clock) {
+        int color = clock.color;
 
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
+        if (clock.boldHours) {
             clockViews.setViewVisibility(R.id.clock1_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock1_regular, View.GONE);
             clockViews.setTextColor(R.id.clock1_bold, color);
@@ -280,7 +487,7 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
+        if (clock.boldMinutes) {
             clockViews.setViewVisibility(R.id.clock2_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock2_regular, View.GONE);
             clockViews.setTextColor(R.id.clock2_bold, color);
@@ -291,21 +498,21 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Show the AM/PM indicator
-        if (!DateFormat.is24HourFormat(this) && Preferences.showAmPmIndicator(this)) {
+        if (clock.amPm != null) {
             clockViews.setViewVisibility(R.id.clock_ampm, View.VISIBLE);
-            clockViews.setTextViewText(R.id.clock_ampm, amPM);
+            clockViews.setTextViewText(R.id.clock_ampm, clock.amPm);
             clockViews.setTextColor(R.id.clock_ampm, color);
         } else {
             clockViews.setViewVisibility(R.id.clock_ampm, View.GONE);
         }
     }
 
-    private void refreshDateAlarmFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
+    private void refreshDateAlarmFont(RemoteViews clockViews, boolean smallWidget, ClockState clock) {
+        int color = clock.color;
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
+            if (clock.boldDate) {
                 clockViews.setViewVisibility(R.id.date_bold, View.VISIBLE);
                 clockViews.setViewVisibility(R.id.date_regular, View.GONE);
                 clockViews.setTextColor(R.id.date_bold, color);
@@ -331,53 +538,40 @@ public class ClockWidgetService extends IntentService {
         clockViews.setTextViewTextSize(R.id.clock2_regular, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
     }
 
-    private String getHourFormat() {
-        String format;
-        if (DateFormat.is24HourFormat(this)) {
-            format = getString(R.string.widget_24_hours_format_h_api_16);
-        } else {
-            format = getString(R.string.widget_12_hours_format_h);
-        }
-        return format;
-    }
-
     //===============================================================================================
     // Alarm related functionality
     //===============================================================================================
-    private void refreshAlarmStatus(RemoteViews alarmViews, boolean smallWidget) {
-        if (Preferences.showAlarm(this)) {
-            String nextAlarm = getNextAlarm();
-            if (!TextUtils.isEmpty(nextAlarm)) {
-                // An alarm is set, deal with displaying it
-                int color = Preferences.clockAlarmFontColor(this);
-
-                // Overlay the selected color on the alarm icon and set the imageview
-                alarmViews.setImageViewBitmap(R.id.alarm_icon,
-                        WidgetUtils.getOverlaidBitmap(this, R.drawable.ic_alarm_small, color));
-                alarmViews.setViewVisibility(R.id.alarm_icon, View.VISIBLE);
-
-                if (!smallWidget) {
-                    if (Preferences.useBoldFontForDateAndAlarms(this)) {
-                        alarmViews.setTextViewText(R.id.nextAlarm_bold,
-                                nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                        alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.VISIBLE);
-                        alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.GONE);
-                        alarmViews.setTextColor(R.id.nextAlarm_bold, color);
-                    } else {
-                        alarmViews.setTextViewText(R.id.nextAlarm_regular,
-                                nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                        alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.VISIBLE);
-                        alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.GONE);
-                        alarmViews.setTextColor(R.id.nextAlarm_regular, color);
-                    }
+    private void refreshAlarmStatus(RemoteViews alarmViews, WidgetRenderState state) {
+        final AlarmState alarm = state.alarm;
+        final boolean smallWidget = state.smallWidget;
+
+        if (alarm.nextAlarm != null) {
+            // An alarm is set, deal with displaying it
+            int color = alarm.color;
+
+            // Overlay the selected color on the alarm icon and set the imageview
+            alarmViews.setImageViewBitmap(R.id.alarm_icon,
+                    WidgetUtils.getOverlaidBitmap(this, R.drawable.ic_alarm_small, color));
+            alarmViews.setViewVisibility(R.id.alarm_icon, View.VISIBLE);
+
+            if (!smallWidget) {
+                if (alarm.bold) {
+                    alarmViews.setTextViewText(R.id.nextAlarm_bold, alarm.nextAlarm);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.VISIBLE);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.GONE);
+                    alarmViews.setTextColor(R.id.nextAlarm_bold, color);
                 } else {
-                    alarmViews.setTextViewText(R.id.nextAlarm,
-                            nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                    alarmViews.setViewVisibility(R.id.nextAlarm, View.VISIBLE);
-                    alarmViews.setTextColor(R.id.nextAlarm, color);
+                    alarmViews.setTextViewText(R.id.nextAlarm_regular, alarm.nextAlarm);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.VISIBLE);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.GONE);
+                    alarmViews.setTextColor(R.id.nextAlarm_regular, color);
                 }
-                return;
+            } else {
+                alarmViews.setTextViewText(R.id.nextAlarm, alarm.nextAlarm);
+                alarmViews.setViewVisibility(R.id.nextAlarm, View.VISIBLE);
+                alarmViews.setTextColor(R.id.nextAlarm, color);
             }
+            return;
         }
 
         // No alarm set or Alarm display is hidden, hide the views
@@ -405,17 +599,115 @@ public class ClockWidgetService extends IntentService {
     //===============================================================================================
     // Weather related functionality
     //===============================================================================================
+    /**
+     * Push new weather data straight to the widgets that already show the weather panel,
+     * without a pass through the service. Widgets that haven't been rendered yet get a
+     * regular refresh instead.
+     */
+    public static void publishWeather(Context context, WeatherInfo info) {
+        final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        final int[] widgetIds = appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, ClockWidgetProvider.class));
+        boolean needsRefresh = false;
+
+        for (int id : widgetIds) {
+            synchronized (sRenderLock) {
+                WidgetRenderState lastState;
+                synchronized (sRenderStates) {
+                    lastState = sRenderStates.get(id);
+                }
+                if (lastState == null
+                        || isFullUpdateDue(lastState, SystemClock.elapsedRealtime())) {
+                    // Leave it to the service, which pushes the complete widget
+                    needsRefresh = true;
+                    continue;
+                }
+
+                WeatherState lastWeather = lastState.weather;
+                if (!lastWeather.visible) {
+                    // Nothing to show, the panel comes back with a regular refresh
+                    continue;
+                }
+                WeatherState weather = lastWeather.withInfo(info);
+                if (weather.equals(lastWeather)) {
+                    continue;
+                }
+
+                WidgetRenderState state = lastState.withWeather(weather);
+                RemoteViews weatherViews = new RemoteViews(context.getPackageName(),
+                        state.smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+                refreshWeather(context, weatherViews, state);
+                if (D) Log.v(TAG, "Publishing weather to widget " + id);
+                appWidgetManager.partiallyUpdateAppWidget(id, weatherViews);
+                synchronized (sRenderStates) {
+                    // Don't bring back a state that was invalidated in the meantime
+                    if (sRenderStates.get(id) == lastState) {
+                        sRenderStates.put(id, state);
+                    }
+                }
+            }
+        }
+
+        if (needsRefresh) {
+            Intent i = new Intent(context, ClockWidgetService.class);
+            i.setAction(ACTION_REFRESH_WEATHER);
+            context.startService(i);
+        }
+    }
+
+    private static void refreshWeather(Context context, RemoteViews weatherViews,
+            WidgetRenderState state) {
+        final WeatherState weather = state.weather;
+
+        // Now, if we need to show the actual weather, do so
+        if (weather.visible) {
+            WeatherInfo weatherInfo = weather.info;
+
+            if (weatherInfo != null) {
+                setWeatherData(context, weatherViews, state.smallWidget, weather);
+
+                // AQI info
+                String aqiInfo = weatherInfo.getAqiInfo();
+                if (TextUtils.isEmpty(aqiInfo)) {
+                    weatherViews.setViewVisibility(R.id.aqi_info_panel, View.GONE);
+                } else {
+                    int aqiInfoTextColor = weather.color;
+                    int aqiInfoTextBg = 0;
+
+                    int[] aqiInfoColors = weatherInfo.getAqiLevelColors();
+                    if (aqiInfoColors != null && aqiInfoColors.length == 2) {
+                        aqiInfoTextColor = aqiInfoColors[0];
+                        aqiInfoTextBg = aqiInfoColors[1];
+                    }
+
+                    weatherViews.setTextViewText(R.id.aqi_info, aqiInfo);
+                    weatherViews.setTextColor(R.id.aqi_info, aqiInfoTextColor);
+                    weatherViews.setInt(R.id.aqi_info, "setBackgroundColor", aqiInfoTextBg);
+                    weatherViews.setViewVisibility(R.id.aqi_info_panel, View.VISIBLE);
+                }
+            } else {
+                setNoWeatherData(context, weatherViews, state.smallWidget, weather);
+                // AQI info
+                weatherViews.setViewVisibility(R.id.aqi_info_panel, View.GONE);
+            }
+        }
+        weatherViews.setViewVisibility(R.id.weather_panel, weather.visible ? View.VISIBLE : View.GONE);
+    }
+
     /**
      * Display the weather information
      */
-    private void setWeatherData(RemoteViews weatherViews, boolean smallWidget, WeatherInfo w) {
-        int color = Preferences.weatherFontColor(this);
-        int timestampColor = Preferences.weatherTimestampFontColor(this);
-        boolean colorIcons = Preferences.useAlternateWeatherIcons(this);
+    private static void setWeatherData(Context context, RemoteViews weatherViews,
+            boolean smallWidget, WeatherState weather) {
+        final WeatherInfo w = weather.info;
+        int color = weather.color;
+        int timestampColor = weather.timestampColor;
+        boolean colorIcons = weather.colorIcons;
 
         // Reset no weather visibility
         weatherViews.setViewVisibility(R.id.weather_no_data, View.GONE);
         weatherViews.setViewVisibility(R.id.weather_refresh, View.GONE);
+        weatherViews.setViewVisibility(R.id.weather_image, View.VISIBLE);
 
         // Weather Image
         if (colorIcons) {
@@ -439,8 +731,8 @@ public class ClockWidgetService extends IntentService {
         if (!smallWidget) {
             // Display the full weather information panel items
             // Load the preferences
-            boolean showLocation = Preferences.showWeatherLocation(this);
-            boolean showTimestamp = Preferences.showWeatherTimestamp(this);
+            boolean showLocation = weather.showLocation;
+            boolean showTimestamp = weather.showTimestamp;
 
             // City
             weatherViews.setTextViewText(R.id.weather_city, w.getCity());
@@ -450,11 +742,8 @@ public class ClockWidgetService extends IntentService {
             // Weather Update Time
             if (showTimestamp) {
                 Date updateTime = w.getTimestamp();
-                StringBuilder sb = new StringBuilder();
-                sb.append(DateFormat.format("E", updateTime));
-                sb.append(" ");
-                sb.append(DateFormat.getTimeFormat(this).format(updateTime));
-                weatherViews.setTextViewText(R.id.update_time, sb.toString());
+                weatherViews.setTextViewText(R.id.update_time,
+                        FormatterCache.get(context).formatDayAndTime(updateTime));
                 weatherViews.setViewVisibility(R.id.update_time, View.VISIBLE);
                 weatherViews.setTextColor(R.id.update_time, timestampColor);
             } else {
@@ -462,7 +751,7 @@ public class ClockWidgetService extends IntentService {
             }
 
             // Weather Temps Panel additional items
-            boolean invertLowhigh = Preferences.invertLowHighTemperature(this);
+            boolean invertLowhigh = weather.invertLowHigh;
             final String low = w.getFormattedLow();
             final String high = w.getFormattedHigh();
             weatherViews.setTextViewText(R.id.weather_low_high, invertLowhigh ? high + " | " + low : low + " | " + high);
@@ -470,17 +759,19 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Register an onClickListener on Weather
-        setWeatherClickListener(weatherViews);
+        setWeatherClickListener(context, weatherViews);
     }
 
     /**
      * There is no data to display, display 'empty' fields and the 'Tap to reload' message
      */
-    private void setNoWeatherData(RemoteViews weatherViews, boolean smallWidget) {
-        int color = Preferences.weatherFontColor(this);
+    private static void setNoWeatherData(Context context, RemoteViews weatherViews,
+            boolean smallWidget, WeatherState weather) {
+        int color = weather.color;
 
         // Hide the normal weather stuff
-        String noData = getString(R.string.weather_cannot_reach_provider, getString(R.string.weather_source));
+        String noData = context.getString(R.string.weather_cannot_reach_provider,
+                context.getString(R.string.weather_source));
         weatherViews.setViewVisibility(R.id.weather_image, View.INVISIBLE);
         if (!smallWidget) {
             weatherViews.setViewVisibility(R.id.weather_city, View.GONE);
@@ -490,36 +781,38 @@ public class ClockWidgetService extends IntentService {
 
             // Set up the no data and refresh indicators
             weatherViews.setTextViewText(R.id.weather_no_data, noData);
-            weatherViews.setTextViewText(R.id.weather_refresh, getString(R.string.weather_tap_to_refresh));
+            weatherViews.setTextViewText(R.id.weather_refresh,
+                    context.getString(R.string.weather_tap_to_refresh));
             weatherViews.setTextColor(R.id.weather_no_data, color);
             weatherViews.setTextColor(R.id.weather_refresh, color);
             weatherViews.setViewVisibility(R.id.weather_no_data, View.VISIBLE);
             weatherViews.setViewVisibility(R.id.weather_refresh, View.VISIBLE);
         } else {
             weatherViews.setTextViewText(R.id.weather_temp, noData);
-            weatherViews.setTextViewText(R.id.weather_condition, getString(R.string.weather_tap_to_refresh));
+            weatherViews.setTextViewText(R.id.weather_condition,
+                    context.getString(R.string.weather_tap_to_refresh));
             weatherViews.setTextColor(R.id.weather_temp, color);
             weatherViews.setTextColor(R.id.weather_condition, color);
         }
 
         // Register an onClickListener on Weather with the default (Refresh) action
-        setWeatherClickListener(weatherViews);
+        setWeatherClickListener(context, weatherViews);
     }
 
-    private void setWeatherClickListener(RemoteViews weatherViews) {
+    private static void setWeatherClickListener(Context context, RemoteViews weatherViews) {
         weatherViews.setOnClickPendingIntent(R.id.weather_panel,
-                WeatherUpdateService.getUpdateIntent(this, true));
+                WeatherUpdateService.getUpdateIntent(context, true));
     }
 
     //===============================================================================================
     // Calendar related functionality
     //===============================================================================================
-    private void refreshCalendar(RemoteViews calendarViews, int widgetId) {
+    private void refreshCalendar(RemoteViews calendarViews, int widgetId, CalendarState calendar) {
         // Calendar icon: Overlay the selected color and set the imageview
-        int color = Preferences.calendarFontColor(this);
+        int color = calendar.color;
 
         // Hide the icon if preference set
-        if (Preferences.showCalendarIcon(this)) {
+        if (calendar.showIcon) {
             calendarViews.setImageViewBitmap(R.id.calendar_icon,
                     WidgetUtils.getOverlaidBitmap(this, R.drawable.ic_lock_idle_calendar, color));
         } else {
@@ -543,14 +836,7 @@ public class ClockWidgetService extends IntentService {
         calendarViews.setPendingIntentTemplate(R.id.calendar_list, eventClickPendingIntent);
     }
 
-    public static PendingIntent getRefreshIntent(Context context) {
-        Intent i = new Intent(context, ClockWidgetService.class);
-        i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
-        return PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
-    }
-
     public static void cancelUpdates(Context context) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getRefreshIntent(context));
+        WakeupPlanner.cancel(context, WakeupPlanner.JOB_CALENDAR);
     }
 }
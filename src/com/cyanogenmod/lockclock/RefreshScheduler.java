@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+/**
+ * Merges the refresh requests that arrive while a refresh pass is pending into a single pass.
+ * Requests are added as they arrive, and the pass takes the union of everything requested
+ * since the last pass.
+ */
+class RefreshScheduler {
+    // Request flags
+    static final int FLAG_REFRESH_CALENDAR = 1 << 0;
+    static final int FLAG_HIDE_CALENDAR = 1 << 1;
+
+    // Pending request, panels is 0 if nothing is pending
+    private int mPanels;
+    private int mFlags;
+
+    // Statistics
+    private int mRequestCount;
+    private int mPassCount;
+    private int mRenderCount;
+
+    /**
+     * Add a request for the given WidgetRenderState panels
+     */
+    synchronized void request(int panels, int flags) {
+        mRequestCount++;
+        mPanels |= panels;
+        if ((flags & FLAG_REFRESH_CALENDAR) != 0) {
+            // A calendar refresh starts with the panel not explicitly hidden
+            mFlags &= ~FLAG_HIDE_CALENDAR;
+        }
+        mFlags |= flags;
+    }
+
+    synchronized boolean hasPending() {
+        return mPanels != 0;
+    }
+
+    /**
+     * Take the merged pending request
+     *
+     * @return The request, or null if there is nothing to do
+     */
+    synchronized Request take() {
+        if (mPanels == 0) {
+            return null;
+        }
+        Request request = new Request(mPanels, mFlags);
+        mPanels = 0;
+        mFlags = 0;
+        mPassCount++;
+        return request;
+    }
+
+    /**
+     * Record that a widget update was pushed to the host
+     */
+    synchronized void onWidgetRendered() {
+        mRenderCount++;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    synchronized int getPassCount() {
+        return mPassCount;
+    }
+
+    synchronized int getRenderCount() {
+        return mRenderCount;
+    }
+
+    static class Request {
+        final int panels;
+        final int flags;
+
+        Request(int panels, int flags) {
+            this.panels = panels;
+            this.flags = flags;
+        }
+
+        boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RefreshScheduler [requests=" + mRequestCount + ", passes=" + mPassCount
+                + ", renders=" + mRenderCount + "]";
+    }
+}
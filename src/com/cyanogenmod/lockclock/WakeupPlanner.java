@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Schedules the timed work of the weather, calendar and clock refreshes with as few alarms
+ * as possible.
+ *
+ * Each job has a deadline, a tolerance by which it may be delayed, and whether it has to
+ * wake the device. All jobs that have to wake the device share a single wakeup alarm: it
+ * goes off at the latest deadline that still lies within the tolerance of the most urgent
+ * job, and runs every job that is due by then. The other jobs share a single non wakeup
+ * alarm, which goes off the next time the device is awake.
+ *
+ * The jobs are kept in a preferences file of their own, so they survive the process. The
+ * number of wakeups per job and day is counted there as well, and logged once a day.
+ */
+public class WakeupPlanner {
+    private static final String TAG = "WakeupPlanner";
+    private static final boolean D = Constants.DEBUG;
+
+    public static final int JOB_WEATHER = 0;
+    public static final int JOB_CALENDAR = 1;
+    public static final int JOB_CLOCK = 2;
+    private static final int JOB_COUNT = 3;
+    private static final String[] JOB_NAMES = new String[] { "weather", "calendar", "clock" };
+
+    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    // Jobs due within this time of an alarm are run with it
+    private static final long DISPATCH_SLACK_MS = 1000;
+
+    // Keeps the device awake until the started services have taken their own wake locks
+    private static final long DISPATCH_WAKELOCK_MS = 10 * 1000;
+
+    private static final String PREFS_NAME = "wakeup_planner";
+
+    private static final int REQUEST_ALARM = 0;
+    private static final int REQUEST_WAKEUP_ALARM = 1;
+    static final String EXTRA_WAKEUP = "wakeup";
+
+    private static Job[] sJobs;
+
+    private WakeupPlanner() {
+    }
+
+    private static class Job {
+        // 0 if the job is not scheduled
+        long deadline;
+        long tolerance;
+        boolean wakeup;
+        int extra;
+    }
+
+    /**
+     * Schedule a job, replacing an earlier schedule of it
+     *
+     * @param deadline  The time the job is due at
+     * @param tolerance How long the job may be delayed after its deadline
+     * @param wakeup    Whether the job has to wake the device
+     * @param extra     Job specific data handed back when the job runs
+     */
+    public static synchronized void schedule(Context context, int job, long deadline,
+            long tolerance, boolean wakeup, int extra) {
+        Job[] jobs = getJobs(context);
+        Job entry = jobs[job];
+        if (D) Log.d(TAG, "Scheduling " + JOB_NAMES[job] + " at " + new Date(deadline)
+                + ", tolerance " + (tolerance / 1000) + "s, wakeup = " + wakeup);
+        if (entry.deadline != deadline || entry.tolerance != tolerance
+                || entry.wakeup != wakeup || entry.extra != extra) {
+            entry.deadline = Math.max(deadline, 1);
+            entry.tolerance = Math.max(tolerance, 0);
+            entry.wakeup = wakeup;
+            entry.extra = extra;
+            save(context, job, entry);
+        }
+        // Even an unchanged job may have lost its alarm, e.g. after a reboot
+        updateAlarms(context, jobs);
+    }
+
+    public static synchronized void cancel(Context context, int job) {
+        Job[] jobs = getJobs(context);
+        if (jobs[job].deadline == 0) {
+            return;
+        }
+        if (D) Log.d(TAG, "Cancelling " + JOB_NAMES[job]);
+        jobs[job].deadline = 0;
+        save(context, job, jobs[job]);
+        updateAlarms(context, jobs);
+    }
+
+    /**
+     * Set the alarms for the stored jobs again. Alarms don't survive a reboot, the jobs do.
+     */
+    public static synchronized void rescheduleAlarms(Context context) {
+        if (D) Log.d(TAG, "Rescheduling alarms");
+        updateAlarms(context, getJobs(context));
+    }
+
+    /**
+     * Run the jobs that are due, and schedule the alarms for the remaining ones
+     */
+    static void dispatch(Context context, boolean wakeup) {
+        final long now = System.currentTimeMillis();
+        int[] extras = new int[JOB_COUNT];
+        boolean[] due = new boolean[JOB_COUNT];
+
+        synchronized (WakeupPlanner.class) {
+            Job[] jobs = getJobs(context);
+            for (int i = 0; i < JOB_COUNT; i++) {
+                Job job = jobs[i];
+                if (job.deadline != 0 && job.deadline <= now + DISPATCH_SLACK_MS) {
+                    due[i] = true;
+                    extras[i] = job.extra;
+                    // Jobs that don't need a wakeup only came along, don't count them
+                    if (wakeup && job.wakeup) {
+                        countWakeup(context, i, now);
+                    }
+                    job.deadline = 0;
+                    save(context, i, job);
+                }
+            }
+            updateAlarms(context, jobs);
+        }
+
+        // Run the jobs outside the lock, they may schedule themselves again
+        for (int i = 0; i < JOB_COUNT; i++) {
+            if (due[i]) {
+                if (D) Log.d(TAG, "Running " + JOB_NAMES[i]);
+                run(context, i, extras[i]);
+            }
+        }
+    }
+
+    private static void run(Context context, int job, int extra) {
+        switch (job) {
+            case JOB_WEATHER:
+                WeatherUpdateService.startUpdate(context, extra != 0);
+                break;
+            case JOB_CALENDAR:
+                Intent i = new Intent(context, ClockWidgetService.class);
+                i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
+                context.startService(i);
+                break;
+            case JOB_CLOCK:
+                ClockTickReceiver.onClockTick(context, false);
+                break;
+        }
+    }
+
+    //===============================================================================================
+    // Wakeup statistics
+    //===============================================================================================
+    private static int getDay(long time) {
+        return (int) ((time + TimeZone.getDefault().getOffset(time)) / DAY_IN_MILLIS);
+    }
+
+    /**
+     * Count a run of the job from a wakeup alarm, and report the count of the previous
+     * day when a new day starts
+     */
+    private static void countWakeup(Context context, int job, long now) {
+        SharedPreferences prefs = getPrefs(context);
+        String name = JOB_NAMES[job];
+        int day = getDay(now);
+        int count = prefs.getInt(name + "_wakeups", 0);
+        int countDay = prefs.getInt(name + "_wakeups_day", day);
+
+        if (countDay != day) {
+            long dayStart = countDay * DAY_IN_MILLIS;
+            dayStart -= TimeZone.getDefault().getOffset(dayStart);
+            Log.i(TAG, name + " woke the device " + count + " times on "
+                    + DateFormat.format("yyyy-MM-dd", dayStart));
+            count = 0;
+        }
+        count++;
+        if (D) Log.d(TAG, name + " woke the device " + count + " times today");
+        prefs.edit()
+                .putInt(name + "_wakeups", count)
+                .putInt(name + "_wakeups_day", day)
+                .apply();
+    }
+
+    static long getDispatchWakeLockTimeout() {
+        return DISPATCH_WAKELOCK_MS;
+    }
+
+    //===============================================================================================
+    // Alarms
+    //===============================================================================================
+    private static void updateAlarms(Context context, Job[] jobs) {
+        // The wakeup alarm may be delayed up to the end of the most urgent tolerance window
+        long windowEnd = Long.MAX_VALUE;
+        for (Job job : jobs) {
+            if (job.deadline != 0 && job.wakeup) {
+                windowEnd = Math.min(windowEnd, job.deadline + job.tolerance);
+            }
+        }
+        // ... and goes off at the latest deadline within that window, to take as many
+        // jobs along as possible
+        long wakeupTime = 0;
+        long alarmTime = 0;
+        for (Job job : jobs) {
+            if (job.deadline == 0) {
+                continue;
+            }
+            if (job.wakeup) {
+                if (job.deadline <= windowEnd) {
+                    wakeupTime = Math.max(wakeupTime, job.deadline);
+                }
+            } else if (alarmTime == 0 || job.deadline < alarmTime) {
+                alarmTime = job.deadline;
+            }
+        }
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent wakeupIntent = getAlarmIntent(context, true);
+        PendingIntent alarmIntent = getAlarmIntent(context, false);
+
+        if (wakeupTime != 0) {
+            if (D) Log.d(TAG, "Next wakeup at " + new Date(wakeupTime));
+            am.set(AlarmManager.RTC_WAKEUP, wakeupTime, wakeupIntent);
+        } else {
+            am.cancel(wakeupIntent);
+        }
+        // Jobs due after the wakeup are covered by it, it schedules the next alarms
+        if (alarmTime != 0 && (wakeupTime == 0 || alarmTime < wakeupTime)) {
+            if (D) Log.d(TAG, "Next alarm at " + new Date(alarmTime));
+            am.set(AlarmManager.RTC, alarmTime, alarmIntent);
+        } else {
+            am.cancel(alarmIntent);
+        }
+    }
+
+    private static PendingIntent getAlarmIntent(Context context, boolean wakeup) {
+        Intent i = new Intent(context, WakeupReceiver.class);
+        i.putExtra(EXTRA_WAKEUP, wakeup);
+        return PendingIntent.getBroadcast(context,
+                wakeup ? REQUEST_WAKEUP_ALARM : REQUEST_ALARM, i,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    //===============================================================================================
+    // Persistence
+    //===============================================================================================
+    private static Job[] getJobs(Context context) {
+        if (sJobs == null) {
+            SharedPreferences prefs = getPrefs(context);
+            Job[] jobs = new Job[JOB_COUNT];
+            for (int i = 0; i < JOB_COUNT; i++) {
+                Job job = new Job();
+                String name = JOB_NAMES[i];
+                job.deadline = prefs.getLong(name + "_deadline", 0);
+                job.tolerance = prefs.getLong(name + "_tolerance", 0);
+                job.wakeup = prefs.getBoolean(name + "_wakeup", false);
+                job.extra = prefs.getInt(name + "_extra", 0);
+                jobs[i] = job;
+            }
+            sJobs = jobs;
+        }
+        return sJobs;
+    }
+
+    private static void save(Context context, int index, Job job) {
+        String name = JOB_NAMES[index];
+        getPrefs(context).edit()
+                .putLong(name + "_deadline", job.deadline)
+                .putLong(name + "_tolerance", job.tolerance)
+                .putBoolean(name + "_wakeup", job.wakeup)
+                .putInt(name + "_extra", job.extra)
+                .apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+/**
+ * Receives the alarms of the WakeupPlanner and runs the jobs that are due
+ */
+public class WakeupReceiver extends BroadcastReceiver {
+    private static final String TAG = "WakeupReceiver";
+    private static final boolean D = Constants.DEBUG;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        boolean wakeup = intent.getBooleanExtra(WakeupPlanner.EXTRA_WAKEUP, false);
+        if (D) Log.d(TAG, "Got " + (wakeup ? "wakeup " : "") + "alarm");
+
+        if (wakeup) {
+            // The alarm only keeps the device awake until we return, the services started
+            // for the jobs need a moment to take their own wake locks
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            wakeLock.acquire(WakeupPlanner.getDispatchWakeLockTimeout());
+        }
+        WakeupPlanner.dispatch(context, wakeup);
+    }
+}
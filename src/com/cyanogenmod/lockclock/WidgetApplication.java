@@ -17,16 +17,22 @@
 package com.cyanogenmod.lockclock;
 
 import com.cyanogenmod.lockclock.misc.Constants;
-import com.cyanogenmod.lockclock.ClockWidgetProvider;
+import com.cyanogenmod.lockclock.misc.TintedBitmapCache;
+import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.ClockWidgetService;
+import com.cyanogenmod.lockclock.weather.WeatherInfo;
+import com.cyanogenmod.lockclock.weather.WeatherRepository;
 
 import android.app.AlarmManager;
 import android.app.Application;
 import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.util.Log;
 
 public class WidgetApplication extends Application {
@@ -34,68 +40,93 @@ public class WidgetApplication extends Application {
     private static boolean D = Constants.DEBUG;
     private static final long INTERVAL_ONE_MINUTE = 60000L;
 
-    private BroadcastReceiver mTickReceiver = null;
+    private final WeatherRepository.OnWeatherChangedListener mWeatherListener =
+            new WeatherRepository.OnWeatherChangedListener() {
+        @Override
+        public void onWeatherChanged(WeatherInfo info) {
+            if (D) Log.d(TAG, "Weather data changed, publishing it to the widgets");
+            ClockWidgetService.publishWeather(WidgetApplication.this, info);
+        }
+    };
 
-    /**
-     * BroadReceiver and supporting functions used for handling clock ticks
-     * for the TextView clock support (API 16) by scheduling a repeating
-     * alarm event every 60 seconds and triggering a refresh of the widget
-     */
-    public class TickReceiver extends BroadcastReceiver {
+    // The clock is not refreshed while the screen is off, catch up as soon as it is on again
+    private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (Intent.ACTION_TIME_TICK.equals(action)){
-                if (D) Log.d(TAG, "Clock tick event received");
-
-                // Schedule the clock refresh alarm event
-                scheduleClockRefresh(context);
-
-                // Refresh the widget
-                Intent refreshIntent = new Intent(context, ClockWidgetProvider.class);
-                refreshIntent.setAction(ClockWidgetService.ACTION_REFRESH);
-                context.sendBroadcast(refreshIntent);
-
-                // We no longer need the tick receiver, its done its job, stop it
-                stopTickReceiver();
+            int[] widgetIds = AppWidgetManager.getInstance(context).getAppWidgetIds(
+                    new ComponentName(context, ClockWidgetProvider.class));
+            if (widgetIds.length == 0) {
+                return;
             }
+            if (D) Log.d(TAG, "Screen turned on, refreshing the clock");
+            ClockWidgetService.refreshClockText(context);
+            startClockRefresh(context);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        WeatherRepository.addListener(mWeatherListener);
+        if (!WidgetUtils.isTextClockAvailable()) {
+            registerReceiver(mScreenOnReceiver, new IntentFilter(Intent.ACTION_SCREEN_ON));
         }
     }
 
-    public void startTickReceiver() {
-        // Clean up first, just in case
-        stopTickReceiver();
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // The widget sizes are given in dp, their pixel sizes may have changed
+        WidgetUtils.invalidateWidgetLayouts();
+    }
 
-        // Start the new receiver
-        if (D) Log.d(TAG, "Registering clock tick receiver");
-        mTickReceiver = new TickReceiver();
-        registerReceiver(mTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        TintedBitmapCache.trimMemory(level);
     }
 
-    public void stopTickReceiver() {
-        if (mTickReceiver != null) {
-            if (D) Log.d(TAG, "Cleaning up: Unregistering clock tick receiver");
-            unregisterReceiver(mTickReceiver);
-            mTickReceiver = null;
-        }
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        TintedBitmapCache.evictAll();
+    }
+
+    /**
+     * Supporting functions used for handling clock ticks for the TextView clock support (API 16)
+     * by scheduling a repeating alarm event on every minute boundary. The ClockTickReceiver
+     * switches to single alarms while the screen is off, see there.
+     */
+    public static void startClockRefresh(Context context) {
+        scheduleClockRefresh(context, true);
     }
 
-    private static void scheduleClockRefresh(Context context) {
-        if (D) Log.d(TAG, "Starting clock refresh alarm");
+    static void scheduleClockRefresh(Context context, boolean repeating) {
+        if (D) Log.d(TAG, "Starting clock refresh alarm, repeating = " + repeating);
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        long due = System.currentTimeMillis() + INTERVAL_ONE_MINUTE;
-        am.setRepeating(AlarmManager.RTC, due, INTERVAL_ONE_MINUTE, getClockRefreshIntent(context));
+        long now = System.currentTimeMillis();
+        long due = (now / INTERVAL_ONE_MINUTE + 1) * INTERVAL_ONE_MINUTE;
+        if (repeating) {
+            WakeupPlanner.cancel(context, WakeupPlanner.JOB_CLOCK);
+            am.setRepeating(AlarmManager.RTC, due, INTERVAL_ONE_MINUTE,
+                    getClockRefreshIntent(context, true));
+        } else {
+            // Runs along with the other jobs the next time the device is awake
+            am.cancel(getClockRefreshIntent(context, false));
+            WakeupPlanner.schedule(context, WakeupPlanner.JOB_CLOCK, due, 0, false, 0);
+        }
     }
 
     public static void cancelClockRefresh(Context context) {
         if (D) Log.d(TAG, "Cleaning up: Stopping clock refresh alarm");
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getClockRefreshIntent(context));
+        am.cancel(getClockRefreshIntent(context, false));
+        WakeupPlanner.cancel(context, WakeupPlanner.JOB_CLOCK);
     }
 
-    private static PendingIntent getClockRefreshIntent(Context context) {
-        Intent i = new Intent(context, ClockWidgetService.class);
-        i.setAction(ClockWidgetService.ACTION_REFRESH);
-        return PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+    private static PendingIntent getClockRefreshIntent(Context context, boolean repeating) {
+        Intent i = new Intent(context, ClockTickReceiver.class);
+        i.putExtra(ClockTickReceiver.EXTRA_REPEATING, repeating);
+        return PendingIntent.getBroadcast(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.text.TextUtils;
+
+import com.cyanogenmod.lockclock.weather.WeatherInfo;
+
+/**
+ * Immutable description of everything that is visible in a single widget instance.
+ * Two states can be compared to find out which panels need to be pushed to the host.
+ */
+class WidgetRenderState {
+    // Panel flags, as returned by diff()
+    static final int PANEL_CLOCK = 1 << 0;
+    static final int PANEL_ALARM = 1 << 1;
+    static final int PANEL_WEATHER = 1 << 2;
+    static final int PANEL_CALENDAR = 1 << 3;
+    static final int PANEL_ALL = PANEL_CLOCK | PANEL_ALARM | PANEL_WEATHER | PANEL_CALENDAR;
+
+    final boolean smallWidget;
+    final ClockState clock;
+    final AlarmState alarm;
+    final WeatherState weather;
+    final CalendarState calendar;
+    // Elapsed realtime of the last full update of the widget
+    final long fullUpdateTime;
+
+    WidgetRenderState(boolean smallWidget, ClockState clock, AlarmState alarm,
+            WeatherState weather, CalendarState calendar, long fullUpdateTime) {
+        this.smallWidget = smallWidget;
+        this.clock = clock;
+        this.alarm = alarm;
+        this.weather = weather;
+        this.calendar = calendar;
+        this.fullUpdateTime = fullUpdateTime;
+    }
+
+    /**
+     * @return A copy of this state with the clock state replaced
+     */
+    WidgetRenderState withClock(ClockState clock) {
+        return new WidgetRenderState(smallWidget, clock, alarm, weather, calendar,
+                fullUpdateTime);
+    }
+
+    /**
+     * @return A copy of this state with the weather state replaced
+     */
+    WidgetRenderState withWeather(WeatherState weather) {
+        return new WidgetRenderState(smallWidget, clock, alarm, weather, calendar,
+                fullUpdateTime);
+    }
+
+    /**
+     * @return The panels that differ from the given previously pushed state, or PANEL_ALL
+     *         if there is no previous state or the layout has changed
+     */
+    int diff(WidgetRenderState old) {
+        if (old == null || old.smallWidget != smallWidget) {
+            return PANEL_ALL;
+        }
+        int changed = 0;
+        if (!clock.equals(old.clock)) {
+            changed |= PANEL_CLOCK;
+        }
+        if (!alarm.equals(old.alarm)) {
+            changed |= PANEL_ALARM;
+        }
+        if (!weather.equals(old.weather)) {
+            changed |= PANEL_WEATHER;
+        }
+        if (!calendar.equals(old.calendar)) {
+            changed |= PANEL_CALENDAR;
+        }
+        return changed;
+    }
+
+    //===============================================================================================
+    // Per panel state classes
+    //===============================================================================================
+    static class ClockState {
+        final boolean digitalClock;
+        final int color;
+        final boolean boldHours;
+        final boolean boldMinutes;
+        final boolean boldDate;
+        final String amPm;
+        final float scale;
+
+        // Only used by the API 16 TextView clock, null otherwise
+        final CharSequence hours;
+        final CharSequence minutes;
+        final CharSequence date;
+
+        ClockState(boolean digitalClock, int color, boolean boldHours, boolean boldMinutes,
+                boolean boldDate, String amPm, float scale,
+                CharSequence hours, CharSequence minutes, CharSequence date) {
+            this.digitalClock = digitalClock;
+            this.color = color;
+            this.boldHours = boldHours;
+            this.boldMinutes = boldMinutes;
+            this.boldDate = boldDate;
+            this.amPm = amPm;
+            this.scale = scale;
+            this.hours = hours;
+            this.minutes = minutes;
+            this.date = date;
+        }
+
+        /**
+         * @return A copy of this state showing a different time
+         */
+        ClockState withTime(String amPm, CharSequence hours, CharSequence minutes,
+                CharSequence date) {
+            return new ClockState(digitalClock, color, boldHours, boldMinutes, boldDate,
+                    amPm, scale, hours, minutes, date);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof ClockState))
+                return false;
+            ClockState other = (ClockState) obj;
+            return digitalClock == other.digitalClock
+                    && color == other.color
+                    && boldHours == other.boldHours
+                    && boldMinutes == other.boldMinutes
+                    && boldDate == other.boldDate
+                    && Float.compare(scale, other.scale) == 0
+                    && TextUtils.equals(amPm, other.amPm)
+                    && TextUtils.equals(hours, other.hours)
+                    && TextUtils.equals(minutes, other.minutes)
+                    && TextUtils.equals(date, other.date);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (digitalClock ? 1231 : 1237);
+            result = prime * result + color;
+            result = prime * result + Float.floatToIntBits(scale);
+            result = prime * result + ((minutes == null) ? 0 : minutes.toString().hashCode());
+            return result;
+        }
+    }
+
+    static class AlarmState {
+        // null if no alarm is set or the alarm display is disabled
+        final String nextAlarm;
+        final int color;
+        final boolean bold;
+
+        AlarmState(String nextAlarm, int color, boolean bold) {
+            this.nextAlarm = nextAlarm;
+            this.color = color;
+            this.bold = bold;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof AlarmState))
+                return false;
+            AlarmState other = (AlarmState) obj;
+            return color == other.color
+                    && bold == other.bold
+                    && TextUtils.equals(nextAlarm, other.nextAlarm);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + color;
+            result = prime * result + (bold ? 1231 : 1237);
+            result = prime * result + ((nextAlarm == null) ? 0 : nextAlarm.hashCode());
+            return result;
+        }
+    }
+
+    static class WeatherState {
+        final boolean visible;
+        // The data to render, null if there is none. Compared by id, timestamp and AQI only
+        final WeatherInfo info;
+        final int color;
+        final int timestampColor;
+        final boolean colorIcons;
+        final boolean showLocation;
+        final boolean showTimestamp;
+        final boolean invertLowHigh;
+        // The formatting of the update time
+        final boolean is24HourFormat;
+        final String timeZone;
+
+        WeatherState(boolean visible, WeatherInfo info, int color, int timestampColor,
+                boolean colorIcons, boolean showLocation, boolean showTimestamp,
+                boolean invertLowHigh, boolean is24HourFormat, String timeZone) {
+            this.visible = visible;
+            this.info = info;
+            this.color = color;
+            this.timestampColor = timestampColor;
+            this.colorIcons = colorIcons;
+            this.showLocation = showLocation;
+            this.showTimestamp = showTimestamp;
+            this.invertLowHigh = invertLowHigh;
+            this.is24HourFormat = is24HourFormat;
+            this.timeZone = timeZone;
+        }
+
+        /**
+         * @return A copy of this state showing the given data
+         */
+        WeatherState withInfo(WeatherInfo info) {
+            return new WeatherState(visible, info, color, timestampColor, colorIcons,
+                    showLocation, showTimestamp, invertLowHigh, is24HourFormat, timeZone);
+        }
+
+        private static boolean sameInfo(WeatherInfo a, WeatherInfo b) {
+            if (a == b) {
+                return true;
+            }
+            if (a == null || b == null) {
+                return false;
+            }
+            return a.getTimestamp().equals(b.getTimestamp())
+                    && TextUtils.equals(a.getId(), b.getId())
+                    && TextUtils.equals(a.getAqiInfo(), b.getAqiInfo());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof WeatherState))
+                return false;
+            WeatherState other = (WeatherState) obj;
+            if (visible != other.visible)
+                return false;
+            if (!visible)
+                return true;
+            return color == other.color
+                    && timestampColor == other.timestampColor
+                    && colorIcons == other.colorIcons
+                    && showLocation == other.showLocation
+                    && showTimestamp == other.showTimestamp
+                    && invertLowHigh == other.invertLowHigh
+                    && is24HourFormat == other.is24HourFormat
+                    && TextUtils.equals(timeZone, other.timeZone)
+                    && sameInfo(info, other.info);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (visible ? 1231 : 1237);
+            if (!visible) {
+                // Hidden panels are equal regardless of the other fields
+                return result;
+            }
+            result = prime * result + color;
+            result = prime * result + ((info == null) ? 0 : info.getTimestamp().hashCode());
+            return result;
+        }
+    }
+
+    static class CalendarState {
+        final boolean visible;
+        final int color;
+        final boolean showIcon;
+
+        CalendarState(boolean visible, int color, boolean showIcon) {
+            this.visible = visible;
+            this.color = color;
+            this.showIcon = showIcon;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CalendarState))
+                return false;
+            CalendarState other = (CalendarState) obj;
+            if (visible != other.visible)
+                return false;
+            if (!visible)
+                return true;
+            return color == other.color && showIcon == other.showIcon;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (visible ? 1231 : 1237);
+            if (!visible) {
+                // Hidden panels are equal regardless of the other fields
+                return result;
+            }
+            result = prime * result + color;
+            result = prime * result + (showIcon ? 1231 : 1237);
+            return result;
+        }
+    }
+}
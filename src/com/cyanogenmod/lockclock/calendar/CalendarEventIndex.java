@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.cyanogenmod.lockclock.R;
+import com.cyanogenmod.lockclock.calendar.CalendarInfo.EventInfo;
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
+import com.cyanogenmod.lockclock.misc.PreferenceSnapshot;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Index of the calendar instances around the current look ahead window, keyed by instance id.
+ *
+ * The instances are only queried again when the calendar provider reported a change, the
+ * query settings changed or the window moved past the range that was loaded. After a query,
+ * only instances that were added or changed get their details string built again, the
+ * rendered events of all other instances are kept.
+ */
+class CalendarEventIndex {
+    private static final String TAG = "CalendarEventIndex";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    // Load a bit more than needed, so the window can move for a while without a new query
+    private static final long WINDOW_MARGIN = DAY_IN_MILLIS;
+
+    private static final String[] PROJECTION = new String[] {
+            CalendarContract.Instances._ID,
+            CalendarContract.Instances.EVENT_ID,
+            CalendarContract.Events.TITLE,
+            CalendarContract.Instances.BEGIN,
+            CalendarContract.Instances.END,
+            CalendarContract.Events.DESCRIPTION,
+            CalendarContract.Events.EVENT_LOCATION,
+            CalendarContract.Events.ALL_DAY,
+    };
+
+    private final Context mContext;
+    private final ContentObserver mObserver;
+    private final int mMaxEvents;
+    private volatile boolean mDirty = true;
+
+    // The query the instances were loaded with
+    private String mSelection;
+    private String mTimezone;
+    private long mWindowStart;
+    private long mWindowEnd;
+
+    // All loaded instances, ordered by begin time
+    private List<Instance> mInstances = new ArrayList<Instance>();
+
+    // Rendered events by instance id, and the settings they were rendered with
+    private LongSparseArray<EventInfo> mRendered = new LongSparseArray<EventInfo>();
+    private String mRenderKey;
+
+    CalendarEventIndex(Context context) {
+        mContext = context;
+        mMaxEvents = context.getResources().getInteger(R.integer.config_maxCalendarItems);
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (D) Log.v(TAG, "Calendar instances changed");
+                mDirty = true;
+            }
+        };
+    }
+
+    /**
+     * Start tracking changes of the calendar provider
+     */
+    void register() {
+        mContext.getContentResolver().registerContentObserver(
+                CalendarContract.Instances.CONTENT_URI, true, mObserver);
+    }
+
+    void unregister() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        clear();
+    }
+
+    void clear() {
+        mInstances.clear();
+        mRendered.clear();
+        mRenderKey = null;
+        mDirty = true;
+    }
+
+    /**
+     * Build the calendar info for the events between now and now + lookahead, up to
+     * config_maxCalendarItems, querying the calendar provider only if needed
+     */
+    CalendarInfo getCalendarInfo(PreferenceSnapshot prefs, long now, long lookahead) {
+        long later = now + lookahead;
+        String selection = buildSelection(prefs);
+        String timezone = TimeZone.getDefault().getID();
+
+        // all day events are stored in UTC, that is why we need to fetch events after 'later'
+        long windowStart = now - DAY_IN_MILLIS;
+        long windowEnd = later + DAY_IN_MILLIS;
+        if (mDirty || !TextUtils.equals(selection, mSelection)
+                || !TextUtils.equals(timezone, mTimezone)
+                || windowStart < mWindowStart || windowEnd > mWindowEnd) {
+            // Clear the flag first, a change during the query makes the next update query again
+            mDirty = false;
+            if (!query(selection, windowStart, windowEnd + WINDOW_MARGIN)) {
+                mDirty = true;
+                return null;
+            }
+            mSelection = selection;
+            mTimezone = timezone;
+        } else {
+            if (D) Log.v(TAG, "Calendar instances unchanged, skipping query");
+        }
+
+        String renderKey = buildRenderKey(prefs);
+        if (!renderKey.equals(mRenderKey)) {
+            // The details of every event depend on these settings
+            mRendered.clear();
+            mRenderKey = renderKey;
+        }
+
+        CalendarInfo info = new CalendarInfo(Math.min(mInstances.size(), mMaxEvents));
+        LongSparseArray<EventInfo> rendered = new LongSparseArray<EventInfo>();
+        int rebuilt = 0;
+
+        for (Instance instance : mInstances) {
+            if (instance.end < now || instance.begin > later) {
+                continue;
+            }
+            if (rendered.size() >= mMaxEvents) {
+                break;
+            }
+
+            EventInfo event = mRendered.get(instance.instanceId);
+            if (event == null) {
+                event = new EventInfo(instance.eventId, instance.title,
+                        buildDetails(prefs, instance), instance.begin, instance.end,
+                        instance.allDay);
+                rebuilt++;
+            }
+            rendered.put(instance.instanceId, event);
+            info.addEvent(event);
+        }
+        mRendered = rendered;
+
+        // Make sure to update when the next event gets into the lookahead window
+        for (Instance instance : mInstances) {
+            if (instance.rawBegin > later) {
+                if (instance.rawBegin <= later + DAY_IN_MILLIS) {
+                    info.setFollowingEventStart(instance.rawBegin);
+                }
+                break;
+            }
+        }
+
+        if (D) Log.d(TAG, "Showing " + rendered.size() + " events, " + rebuilt + " rebuilt");
+        return info;
+    }
+
+    private boolean query(String selection, long windowStart, long windowEnd) {
+        Uri uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
+                String.format("%d/%d", windowStart, windowEnd));
+        Cursor cursor = mContext.getContentResolver().query(uri, PROJECTION, selection,
+                null, CalendarContract.Instances.BEGIN + " ASC");
+        if (cursor == null) {
+            return false;
+        }
+
+        List<Instance> instances = new ArrayList<Instance>(cursor.getCount());
+        LongSparseArray<Instance> previous = new LongSparseArray<Instance>(mInstances.size());
+        for (Instance instance : mInstances) {
+            previous.put(instance.instanceId, instance);
+        }
+
+        try {
+            final Time time = new Time();
+            while (cursor.moveToNext()) {
+                Instance instance = new Instance(cursor, time);
+                Instance old = previous.get(instance.instanceId);
+                if (old == null || !old.equals(instance)) {
+                    // Added or changed, it needs to be rendered again
+                    mRendered.remove(instance.instanceId);
+                }
+                instances.add(instance);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (D) Log.d(TAG, "Loaded " + instances.size() + " instances, had " + mInstances.size());
+        mInstances = instances;
+        mWindowStart = windowStart;
+        mWindowEnd = windowEnd;
+        return true;
+    }
+
+    private static String buildSelection(PreferenceSnapshot prefs) {
+        boolean remindersOnly = prefs.showEventsWithRemindersOnly;
+        boolean hideAllDay = !prefs.showAllDayEvents;
+        Set<String> calendars = prefs.calendarsToDisplay;
+
+        StringBuilder where = new StringBuilder();
+        if (remindersOnly) {
+            where.append(CalendarContract.Events.HAS_ALARM + "=1");
+        }
+        if (hideAllDay) {
+            if (remindersOnly) {
+                where.append(" AND ");
+            }
+            where.append(CalendarContract.Events.ALL_DAY + "!=1");
+        }
+        if (calendars != null && calendars.size() > 0) {
+            if (remindersOnly || hideAllDay) {
+                where.append(" AND ");
+            }
+            where.append(CalendarContract.Events.CALENDAR_ID + " in (");
+            int i = 0;
+            for (String s : calendars) {
+                where.append(s);
+                if (i != calendars.size() - 1) {
+                    where.append(",");
+                }
+                i++;
+            }
+            where.append(") ");
+        }
+        return where.toString();
+    }
+
+    /**
+     * Everything besides the instance itself that goes into its details string
+     */
+    private String buildRenderKey(PreferenceSnapshot prefs) {
+        Calendar cal = Calendar.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(prefs.calendarLocationMode).append('|');
+        sb.append(prefs.calendarDescriptionMode).append('|');
+        sb.append(cal.get(Calendar.YEAR)).append('-').append(cal.get(Calendar.DAY_OF_YEAR));
+        sb.append('|').append(Locale.getDefault());
+        // Timed instances keep their UTC times across a time zone change, their texts don't
+        sb.append('|').append(TimeZone.getDefault().getID());
+        sb.append('|').append(FormatterCache.get(mContext).is24HourFormat());
+        return sb.toString();
+    }
+
+    private String buildDetails(PreferenceSnapshot prefs, Instance instance) {
+        final int showLocation = prefs.calendarLocationMode;
+        final int showDescription = prefs.calendarDescriptionMode;
+        final long begin = instance.begin;
+        final long end = instance.end;
+        final String location = instance.location;
+        final String description = instance.description;
+        int format = 0;
+
+        // Start building the event details string
+        // Starting with the date
+        StringBuilder sb = new StringBuilder();
+
+        if (instance.allDay) {
+            format = Constants.CALENDAR_FORMAT_ALLDAY;
+        } else if (DateUtils.isToday(begin)) {
+            format = Constants.CALENDAR_FORMAT_TODAY;
+        } else {
+            format = Constants.CALENDAR_FORMAT_FUTURE;
+        }
+        final FormatterCache formatters = FormatterCache.get(mContext);
+        if (instance.allDay || begin == end) {
+            sb.append(formatters.formatDateTime(mContext, begin, format));
+        } else {
+            sb.append(formatters.formatDateRange(mContext, begin, end, format));
+        }
+
+        // Add the event location if it should be shown
+        if (showLocation != Preferences.SHOW_NEVER && !TextUtils.isEmpty(location)) {
+            switch (showLocation) {
+                case Preferences.SHOW_FIRST_LINE:
+                    int stringEnd = location.indexOf('\n');
+                    if (stringEnd == -1) {
+                        sb.append(": " + location);
+                    } else {
+                        sb.append(": " + location.substring(0, stringEnd));
+                    }
+                    break;
+                case Preferences.SHOW_ALWAYS:
+                    sb.append(": " + location);
+                    break;
+            }
+        }
+
+        // Add the event description if it should be shown
+        if (showDescription != Preferences.SHOW_NEVER
+                && !TextUtils.isEmpty(description)) {
+            // Show the appropriate separator
+            if (showLocation == Preferences.SHOW_NEVER) {
+                sb.append(": ");
+            } else {
+                sb.append(" - ");
+            }
+
+            switch (showDescription) {
+                case Preferences.SHOW_FIRST_LINE:
+                    int stringEnd = description.indexOf('\n');
+                    if (stringEnd == -1) {
+                        sb.append(description);
+                    } else {
+                        sb.append(description.substring(0, stringEnd));
+                    }
+                    break;
+                case Preferences.SHOW_ALWAYS:
+                    sb.append(description);
+                    break;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static long convertUtcToLocal(Time time, long utcTime) {
+        time.timezone = Time.TIMEZONE_UTC;
+        time.set(utcTime);
+        time.timezone = Time.getCurrentTimezone();
+        return time.normalize(true);
+    }
+
+    //===============================================================================================
+    // Instance row class
+    //===============================================================================================
+    /**
+     * A row of the instances table as returned by the provider
+     */
+    private static class Instance {
+        final long instanceId;
+        final long eventId;
+        final String title;
+        final String description;
+        final String location;
+        final boolean allDay;
+        // As stored in the provider, all day events are in UTC
+        final long rawBegin;
+        final long rawEnd;
+        // Local time
+        final long begin;
+        final long end;
+
+        Instance(Cursor cursor, Time time) {
+            instanceId = cursor.getLong(0);
+            eventId = cursor.getLong(1);
+            title = cursor.getString(2);
+            rawBegin = cursor.getLong(3);
+            rawEnd = cursor.getLong(4);
+            description = cursor.getString(5);
+            location = cursor.getString(6);
+            allDay = cursor.getInt(7) != 0;
+
+            if (allDay) {
+                begin = convertUtcToLocal(time, rawBegin);
+                end = convertUtcToLocal(time, rawEnd);
+            } else {
+                begin = rawBegin;
+                end = rawEnd;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (int) (instanceId ^ (instanceId >>> 32));
+            result = prime * result + (int) (rawBegin ^ (rawBegin >>> 32));
+            result = prime * result + ((title == null) ? 0 : title.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Instance))
+                return false;
+            Instance other = (Instance) obj;
+            return instanceId == other.instanceId
+                    && eventId == other.eventId
+                    && allDay == other.allDay
+                    && rawBegin == other.rawBegin
+                    && rawEnd == other.rawEnd
+                    && begin == other.begin
+                    && end == other.end
+                    && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(description, other.description)
+                    && TextUtils.equals(location, other.location);
+        }
+    }
+}
@@ -17,10 +17,7 @@
 
 package com.cyanogenmod.lockclock.calendar;
 
-import com.cyanogenmod.lockclock.misc.Constants;
-
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class CalendarInfo {
@@ -28,7 +25,11 @@ public class CalendarInfo {
     private long mFollowingEventStart;
 
     public CalendarInfo() {
-        mEventsList = new ArrayList<EventInfo>(Constants.MAX_CALENDAR_ITEMS);
+        this(0);
+    }
+
+    public CalendarInfo(int capacity) {
+        mEventsList = new ArrayList<EventInfo>(capacity);
         mFollowingEventStart = 0;
     }
 
@@ -45,9 +46,28 @@ public class CalendarInfo {
         mFollowingEventStart = 0;
     }
 
+    /**
+     * Insert the event at its sorted position, after any events that compare equal.
+     * Events are usually added in start time order, which only needs an append.
+     */
     public void addEvent(EventInfo event) {
-        mEventsList.add(event);
-        Collections.sort(mEventsList);
+        int size = mEventsList.size();
+        if (size == 0 || mEventsList.get(size - 1).compareTo(event) <= 0) {
+            mEventsList.add(event);
+            return;
+        }
+
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEventsList.get(mid).compareTo(event) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        mEventsList.add(low, event);
     }
 
     public void setFollowingEventStart(long start) {
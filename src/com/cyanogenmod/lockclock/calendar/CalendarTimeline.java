@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import java.util.Arrays;
+
+/**
+ * The times at which the calendar panel changes: event starts and ends, events entering the
+ * look-ahead window and the highlight boundaries.
+ *
+ * Boundaries closer together than the slack are handled by a single refresh at the last of
+ * them, so a row of short events doesn't cause a refresh for every start and end. Only some
+ * boundaries are worth waking the device for, the others are handled the next time the
+ * device is awake.
+ */
+class CalendarTimeline {
+    private final long mSlack;
+
+    private long[] mTimes = new long[16];
+    private int mCount;
+    // The boundaries that have to wake the device
+    private long[] mWakeupTimes = new long[4];
+    private int mWakeupCount;
+
+    CalendarTimeline(long slack) {
+        mSlack = slack;
+    }
+
+    void add(long time, boolean wakeup) {
+        if (mCount == mTimes.length) {
+            mTimes = Arrays.copyOf(mTimes, mCount * 2);
+        }
+        mTimes[mCount++] = time;
+        if (wakeup) {
+            if (mWakeupCount == mWakeupTimes.length) {
+                mWakeupTimes = Arrays.copyOf(mWakeupTimes, mWakeupCount * 2);
+            }
+            mWakeupTimes[mWakeupCount++] = time;
+        }
+    }
+
+    /**
+     * @return The next refresh after now, or null if there is no boundary after now
+     */
+    Refresh getNextRefresh(long now) {
+        Arrays.sort(mTimes, 0, mCount);
+
+        int first = 0;
+        while (first < mCount && mTimes[first] <= now) {
+            first++;
+        }
+        if (first == mCount) {
+            return null;
+        }
+
+        // Take along all boundaries within the slack of the first one
+        long windowEnd = mTimes[first] + mSlack;
+        int last = first;
+        while (last + 1 < mCount && mTimes[last + 1] <= windowEnd) {
+            last++;
+        }
+
+        long time = mTimes[last];
+        boolean wakeup = false;
+        for (int i = 0; i < mWakeupCount; i++) {
+            if (mWakeupTimes[i] > now && mWakeupTimes[i] <= time) {
+                wakeup = true;
+                break;
+            }
+        }
+        return new Refresh(time, wakeup, last - first + 1);
+    }
+
+    static class Refresh {
+        final long time;
+        final boolean wakeup;
+        // Number of boundaries handled by this refresh
+        final int boundaries;
+
+        Refresh(long time, boolean wakeup, int boundaries) {
+            this.time = time;
+            this.wakeup = wakeup;
+            this.boundaries = boundaries;
+        }
+    }
+}
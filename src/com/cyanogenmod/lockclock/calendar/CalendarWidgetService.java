@@ -16,23 +16,16 @@
 
 package com.cyanogenmod.lockclock.calendar;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Typeface;
-import android.net.Uri;
-import android.provider.CalendarContract;
 import android.provider.CalendarContract.Events;
 import android.text.SpannableString;
-import android.text.TextUtils;
 import android.text.format.DateFormat;
-import android.text.format.DateUtils;
-import android.text.format.Time;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 import android.widget.RemoteViewsService.RemoteViewsFactory;
@@ -40,13 +33,15 @@ import android.widget.RemoteViewsService.RemoteViewsFactory;
 import com.cyanogenmod.lockclock.ClockWidgetProvider;
 import com.cyanogenmod.lockclock.ClockWidgetService;
 import com.cyanogenmod.lockclock.R;
+import com.cyanogenmod.lockclock.WakeupPlanner;
 import com.cyanogenmod.lockclock.calendar.CalendarInfo.EventInfo;
 import com.cyanogenmod.lockclock.misc.Constants;
-import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.PreferenceSnapshot;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
 
 public class CalendarWidgetService extends RemoteViewsService {
 
@@ -64,22 +59,34 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
     private static final long UPCOMING_EVENT_HOURS_IN_MILLIS =
             Constants.CALENDAR_UPCOMING_EVENTS_FROM_HOUR * 60L * 60L * 1000L;
     private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+    // How long the daily update may wait for other alarms that wake the device
+    private static final long DAILY_UPDATE_TOLERANCE_MS = 60L * 60L * 1000L;
 
     private Context mContext;
     private CalendarInfo mCalendarInfo = new CalendarInfo();
+    private final CalendarEventIndex mEventIndex;
+    private final long mRefreshSlack;
+
+    // Rows of the current events, rendered once per data set change
+    private List<Row> mRows = new ArrayList<Row>();
+    private LongSparseArray<Row> mRowsById = new LongSparseArray<Row>();
+    private RowStyle mRowStyle;
 
     public CalendarRemoteViewsFactory(Context applicationContext, Intent intent) {
         mContext = applicationContext;
+        mEventIndex = new CalendarEventIndex(applicationContext);
+        mRefreshSlack = applicationContext.getResources().getInteger(
+                R.integer.config_calendarRefreshSlackSeconds) * 1000L;
     }
 
     @Override
     public int getCount() {
-        return mCalendarInfo.getEvents().size();
+        return mRows.size();
     }
 
     @Override
     public long getItemId(int position) {
-        return mCalendarInfo.getEvents().get(position).id;
+        return mRows.get(position).event.id;
     }
 
     @Override
@@ -107,47 +114,88 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         return cal.getTimeInMillis();
     }
 
-    private boolean isUpcoming(EventInfo event) {
+    /**
+     * @return The time before which events count as upcoming
+     */
+    private long getEndOfUpcoming(long now) {
         long startOfDay = getStartOfDay();
-        long now = System.currentTimeMillis();
-        long endOfUpcoming;
 
         if (startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS > now) {
-            endOfUpcoming = startOfDay + DAY_IN_MILLIS;
-        } else {
-            endOfUpcoming = startOfDay + 2 * DAY_IN_MILLIS;
+            return startOfDay + DAY_IN_MILLIS;
         }
-        return event.start < endOfUpcoming;
+        return startOfDay + 2 * DAY_IN_MILLIS;
     }
 
     @Override
     public RemoteViews getViewAt(int position) {
-        if (position < 0 || position >= mCalendarInfo.getEvents().size()) {
+        if (position < 0 || position >= mRows.size()) {
             return null;
         }
 
-        boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        boolean nextBold = Preferences.calendarUpcomingEventsBold(mContext);
-        int color, detailsColor;
+        final Row row = mRows.get(position);
+        if (D) Log.v(TAG, "Showing at position " + position + " event: " + row.event.title);
+        return row.views;
+    }
+
+    //===============================================================================================
+    // Pre-rendered rows
+    //===============================================================================================
+    /**
+     * Render the rows of the current events. Rows of unchanged events are kept as long as
+     * the highlight settings and the upcoming state of the event are the same.
+     */
+    private void updateRows(PreferenceSnapshot prefs) {
+        final RowStyle style = new RowStyle(prefs);
+        final boolean styleChanged = !style.equals(mRowStyle);
+        final long endOfUpcoming = getEndOfUpcoming(System.currentTimeMillis());
+        final List<EventInfo> events = mCalendarInfo.getEvents();
+
+        ArrayList<Row> rows = new ArrayList<Row>(events.size());
+        LongSparseArray<Row> rowsById = new LongSparseArray<Row>(events.size());
+        int reused = 0;
+
+        for (EventInfo event : events) {
+            boolean upcoming = style.highlightNext && event.start < endOfUpcoming;
+            Row row = styleChanged ? null : mRowsById.get(event.id);
+            if (row != null && row.upcoming == upcoming && row.event.equals(event)) {
+                reused++;
+            } else {
+                row = new Row(event, upcoming, buildRow(event, upcoming, style));
+            }
+            rows.add(row);
+            // Instances of a recurring event share the id, keep the first one
+            if (rowsById.get(event.id) == null) {
+                rowsById.put(event.id, row);
+            }
+        }
+
+        if (D) Log.v(TAG, "Rendered " + (rows.size() - reused) + " rows, reused " + reused);
+        mRows = rows;
+        mRowsById = rowsById;
+        mRowStyle = style;
+    }
+
+    private RemoteViews buildRow(EventInfo event, boolean upcoming, RowStyle style) {
         final RemoteViews itemViews = new RemoteViews(mContext.getPackageName(),
                 R.layout.calendar_item);
-        final EventInfo event = mCalendarInfo.getEvents().get(position);
+        int color, detailsColor;
 
         // Add the event text fields
-        if (highlightNext && isUpcoming(event)) {
-            color = Preferences.calendarUpcomingEventsFontColor(mContext);
-            detailsColor = Preferences.calendarUpcomingEventsDetailsFontColor(mContext);
-            itemViews.setTextViewText(R.id.calendar_event_title, getSpannableString(event.title, nextBold));
-            itemViews.setTextViewText(R.id.calendar_event_details, getSpannableString(event.description, nextBold));
+        if (upcoming) {
+            color = style.upcomingColor;
+            detailsColor = style.upcomingDetailsColor;
+            itemViews.setTextViewText(R.id.calendar_event_title,
+                    getSpannableString(event.title, style.upcomingBold));
+            itemViews.setTextViewText(R.id.calendar_event_details,
+                    getSpannableString(event.description, style.upcomingBold));
         } else {
-            color = Preferences.calendarFontColor(mContext);
-            detailsColor = Preferences.calendarDetailsFontColor(mContext);
+            color = style.color;
+            detailsColor = style.detailsColor;
             itemViews.setTextViewText(R.id.calendar_event_title, event.title);
             itemViews.setTextViewText(R.id.calendar_event_details, event.description);
         }
         itemViews.setTextColor(R.id.calendar_event_title, color);
         itemViews.setTextColor(R.id.calendar_event_details, detailsColor);
-        if (D) Log.v(TAG, "Showing at position " + position + " event: " + event.title);
 
         final Intent fillInIntent = new Intent();
         fillInIntent.setData(ContentUris.withAppendedId(Events.CONTENT_URI, event.id));
@@ -164,6 +212,69 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         return itemViews;
     }
 
+    private static class Row {
+        final EventInfo event;
+        final boolean upcoming;
+        final RemoteViews views;
+
+        Row(EventInfo event, boolean upcoming, RemoteViews views) {
+            this.event = event;
+            this.upcoming = upcoming;
+            this.views = views;
+        }
+    }
+
+    /**
+     * The highlight settings the rows are rendered with
+     */
+    private static class RowStyle {
+        final boolean highlightNext;
+        final boolean upcomingBold;
+        final int color;
+        final int detailsColor;
+        final int upcomingColor;
+        final int upcomingDetailsColor;
+
+        RowStyle(PreferenceSnapshot prefs) {
+            highlightNext = prefs.calendarHighlightUpcomingEvents;
+            upcomingBold = prefs.calendarUpcomingEventsBold;
+            color = prefs.calendarFontColor;
+            detailsColor = prefs.calendarDetailsFontColor;
+            upcomingColor = prefs.calendarUpcomingEventsFontColor;
+            upcomingDetailsColor = prefs.calendarUpcomingEventsDetailsFontColor;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (highlightNext ? 1231 : 1237);
+            result = prime * result + (upcomingBold ? 1231 : 1237);
+            result = prime * result + color;
+            result = prime * result + detailsColor;
+            result = prime * result + upcomingColor;
+            result = prime * result + upcomingDetailsColor;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            RowStyle other = (RowStyle) obj;
+            return highlightNext == other.highlightNext
+                    && upcomingBold == other.upcomingBold
+                    && color == other.color
+                    && detailsColor == other.detailsColor
+                    && upcomingColor == other.upcomingColor
+                    && upcomingDetailsColor == other.upcomingDetailsColor;
+        }
+    }
+
     @Override
     public int getViewTypeCount() {
         // There's only one view type for the events
@@ -177,6 +288,7 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
 
     @Override
     public void onCreate() {
+        mEventIndex.register();
         updateCalendarInfo(mContext);
         updatePanelVisibility();
     }
@@ -190,14 +302,13 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
 
     private void updateCalendarInfo(Context context) {
         // Load the settings
-        Set<String> calendarList = Preferences.calendarsToDisplay(context);
-        boolean remindersOnly = Preferences.showEventsWithRemindersOnly(context);
-        boolean hideAllDay = !Preferences.showAllDayEvents(context);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
+        final PreferenceSnapshot prefs = PreferenceSnapshot.get(context);
+        long lookAhead = prefs.lookAheadTimeInMs();
 
         if (D) Log.d(TAG, "Checking for calendar events...");
-        getCalendarEvents(context, lookAhead, calendarList, remindersOnly, hideAllDay);
-        scheduleCalendarUpdate(context);
+        getCalendarEvents(prefs, lookAhead);
+        updateRows(prefs);
+        scheduleCalendarUpdate(context, prefs);
     }
 
     /**
@@ -213,199 +324,15 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
     }
 
     /**
-     * Get the next set of calendar events (up to MAX_CALENDAR_ITEMS) within a
+     * Get the next set of calendar events (up to config_maxCalendarItems) within a
      * certain look-ahead time. Result is stored in the CalendarInfo object
      */
-    private void getCalendarEvents(Context context, long lookahead, Set<String> calendars,
-            boolean remindersOnly, boolean hideAllDay) {
-        long now = System.currentTimeMillis();
-        long later = now + lookahead;
-        CalendarInfo newCalendarInfo = new CalendarInfo();
-
-        // Build the 'where' clause
-        StringBuilder where = new StringBuilder();
-        if (remindersOnly) {
-            where.append(CalendarContract.Events.HAS_ALARM + "=1");
-        }
-        if (hideAllDay) {
-            if (remindersOnly) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Events.ALL_DAY + "!=1");
-        }
-        if (calendars != null && calendars.size() > 0) {
-            if (remindersOnly || hideAllDay) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Events.CALENDAR_ID + " in (");
-            int i = 0;
-            for (String s : calendars) {
-                where.append(s);
-                if (i != calendars.size() - 1) {
-                    where.append(",");
-                }
-                i++;
-            }
-            where.append(") ");
-        }
-
-        // Projection array
-        String[] projection = new String[] {
-                CalendarContract.Instances.EVENT_ID,
-                CalendarContract.Events.TITLE,
-                CalendarContract.Instances.BEGIN,
-                CalendarContract.Instances.END,
-                CalendarContract.Events.DESCRIPTION,
-                CalendarContract.Events.EVENT_LOCATION,
-                CalendarContract.Events.ALL_DAY,
-        };
-
-        // all day events are stored in UTC, that is why we need to fetch events after 'later'
-        Uri uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
-                String.format("%d/%d", now - DAY_IN_MILLIS, later + DAY_IN_MILLIS));
-        Cursor cursor = context.getContentResolver().query(uri, projection,
-                where.toString(), null, CalendarContract.Instances.BEGIN + " ASC");
-
-        if (cursor != null) {
-            // The indices for the projection array
-            final int indexEventId = cursor.getColumnIndex(CalendarContract.Instances.EVENT_ID);
-            final int indexTitle = cursor.getColumnIndex(CalendarContract.Events.TITLE);
-            final int indexBeginTime = cursor.getColumnIndex(CalendarContract.Instances.BEGIN);
-            final int indexEndTime = cursor.getColumnIndex(CalendarContract.Instances.END);
-            final int indexDescription = cursor.getColumnIndex(CalendarContract.Events.DESCRIPTION);
-            final int indexLocation = cursor.getColumnIndex(CalendarContract.Events.EVENT_LOCATION);
-            final int indexAllDay = cursor.getColumnIndex(CalendarContract.Events.ALL_DAY);
-
-            final int showLocation = Preferences.calendarLocationMode(context);
-            final int showDescription = Preferences.calendarDescriptionMode(context);
-            final Time time = new Time();
-            int eventCount = 0;
-
-            // Iterate through returned rows to a maximum number of calendar events
-            while (cursor.moveToNext() && eventCount < Constants.MAX_CALENDAR_ITEMS) {
-                final long eventId = cursor.getLong(indexEventId);
-                final String title = cursor.getString(indexTitle);
-                long begin = cursor.getLong(indexBeginTime);
-                long end = cursor.getLong(indexEndTime);
-                final String description = cursor.getString(indexDescription);
-                final String location = cursor.getString(indexLocation);
-                final boolean allDay = cursor.getInt(indexAllDay) != 0;
-                int format = 0;
-
-                if (allDay) {
-                    begin = convertUtcToLocal(time, begin);
-                    end = convertUtcToLocal(time, end);
-                }
-
-                if (end < now || begin > later) {
-                    continue;
-                }
-
-                if (D) Log.v(TAG, "Adding event: " + title + " with id: " + eventId);
-
-                // Start building the event details string
-                // Starting with the date
-                StringBuilder sb = new StringBuilder();
-
-                if (allDay) {
-                    format = Constants.CALENDAR_FORMAT_ALLDAY;
-                } else if (DateUtils.isToday(begin)) {
-                    format = Constants.CALENDAR_FORMAT_TODAY;
-                } else {
-                    format = Constants.CALENDAR_FORMAT_FUTURE;
-                }
-                if (allDay || begin == end) {
-                    sb.append(DateUtils.formatDateTime(context, begin, format));
-                } else {
-                    sb.append(DateUtils.formatDateRange(context, begin, end, format));
-                }
-
-                // Add the event location if it should be shown
-                if (showLocation != Preferences.SHOW_NEVER && !TextUtils.isEmpty(location)) {
-                    switch (showLocation) {
-                        case Preferences.SHOW_FIRST_LINE:
-                            int stringEnd = location.indexOf('\n');
-                            if (stringEnd == -1) {
-                                sb.append(": " + location);
-                            } else {
-                                sb.append(": " + location.substring(0, stringEnd));
-                            }
-                            break;
-                        case Preferences.SHOW_ALWAYS:
-                            sb.append(": " + location);
-                            break;
-                    }
-                }
-
-                // Add the event description if it should be shown
-                if (showDescription != Preferences.SHOW_NEVER
-                        && !TextUtils.isEmpty(description)) {
-                    // Show the appropriate separator
-                    if (showLocation == Preferences.SHOW_NEVER) {
-                        sb.append(": ");
-                    } else {
-                        sb.append(" - ");
-                    }
-
-                    switch (showDescription) {
-                        case Preferences.SHOW_FIRST_LINE:
-                            int stringEnd = description.indexOf('\n');
-                            if (stringEnd == -1) {
-                                sb.append(description);
-                            } else {
-                                sb.append(description.substring(0, stringEnd));
-                            }
-                            break;
-                        case Preferences.SHOW_ALWAYS:
-                            sb.append(description);
-                            break;
-                    }
-                }
-
-                // Add the event details to the CalendarInfo object and move to next record
-                newCalendarInfo.addEvent(new EventInfo(eventId, title, sb.toString(), begin,
-                        end, allDay));
-                eventCount++;
-            }
-            cursor.close();
+    private void getCalendarEvents(PreferenceSnapshot prefs, long lookahead) {
+        CalendarInfo newCalendarInfo = mEventIndex.getCalendarInfo(prefs,
+                System.currentTimeMillis(), lookahead);
+        if (newCalendarInfo != null) {
             mCalendarInfo = newCalendarInfo;
         }
-
-        // check for first event outside of lookahead window
-        long endOfLookahead = now + lookahead;
-        long minUpdateTime = getMinUpdateFromNow(endOfLookahead);
-
-        // don't bother with querying if the end result is later than the minimum update time anyway
-        if (endOfLookahead < minUpdateTime) {
-            if (where.length() > 0) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Instances.BEGIN);
-            where.append(" > ");
-            where.append(endOfLookahead);
-
-            uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
-                    String.format("%d/%d", endOfLookahead, minUpdateTime));
-            projection = new String[] {
-                    CalendarContract.Instances.BEGIN
-            };
-            cursor = context.getContentResolver().query(uri, projection, where.toString(), null,
-                    CalendarContract.Instances.BEGIN + " ASC limit 1");
-
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    mCalendarInfo.setFollowingEventStart(cursor.getLong(0));
-                }
-                cursor.close();
-            }
-        }
-    }
-
-    private static long convertUtcToLocal(Time time, long utcTime) {
-        time.timezone = Time.TIMEZONE_UTC;
-        time.set(utcTime);
-        time.timezone = Time.getCurrentTimezone();
-        return time.normalize(true);
     }
 
     private static long getMinUpdateFromNow(long now) {
@@ -417,76 +344,73 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
     // Update timer related functionality
     // ===============================================================================================
     /**
-     * Calculates and returns the next time we should push widget updates.
+     * Calculates the next time we should push widget updates.
+     *
+     * Only the daily update wakes the device. The event boundaries are refreshed the next time
+     * the device is awake, which is as soon as the screen is turned on.
      */
-    private long calculateUpdateTime(Context context) {
+    private CalendarTimeline.Refresh calculateNextRefresh(Context context,
+            PreferenceSnapshot prefs) {
         final long now = System.currentTimeMillis();
-        final boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
-        long minUpdateTime = getMinUpdateFromNow(now);
+        final boolean highlightNext = prefs.calendarHighlightUpcomingEvents;
+        long lookAhead = prefs.lookAheadTimeInMs();
+        CalendarTimeline timeline = new CalendarTimeline(mRefreshSlack);
+
+        timeline.add(getMinUpdateFromNow(now), true);
 
-        // Check if there is a calendar event earlier
+        // Add the event boundaries
         for (EventInfo event : mCalendarInfo.getEvents()) {
-            final long end = event.end;
-            final long start = event.start;
-            if (now < start) {
-                minUpdateTime = Math.min(minUpdateTime, start);
-            }
-            if (now < end) {
-                minUpdateTime = Math.min(minUpdateTime, end);
-            }
+            timeline.add(event.start, false);
+            timeline.add(event.end, false);
         }
 
         if (mCalendarInfo.getFollowingEventStart() > 0) {
             // Make sure to update when the next event gets into the lookahead window
-            minUpdateTime = Math.min(minUpdateTime, mCalendarInfo.getFollowingEventStart()
-                    - lookAhead);
+            timeline.add(mCalendarInfo.getFollowingEventStart() - lookAhead, false);
         }
 
         if (highlightNext) {
             // Update at midnight and at 8pm if highlighting of upcoming events is enabled
             final long startOfDay = getStartOfDay();
-            if (now < startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS
-                    && startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS < minUpdateTime) {
-                minUpdateTime = startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS;
-            } else if (startOfDay + DAY_IN_MILLIS < minUpdateTime) {
-                minUpdateTime = startOfDay + DAY_IN_MILLIS;
-            }
+            timeline.add(startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS, false);
+            timeline.add(startOfDay + DAY_IN_MILLIS, false);
         }
 
+        CalendarTimeline.Refresh refresh = timeline.getNextRefresh(now);
+
         // Construct a log entry in human readable form
-        if (D) {
+        if (D && refresh != null) {
             Date date1 = new Date(now);
-            Date date2 = new Date(minUpdateTime);
+            Date date2 = new Date(refresh.time);
             Log.i(TAG, "cLock: It is now " + DateFormat.getTimeFormat(context).format(date1)
                     + ", next widget update on " + DateFormat.getDateFormat(context).format(date2)
-                    + " at " + DateFormat.getTimeFormat(context).format(date2));
+                    + " at " + DateFormat.getTimeFormat(context).format(date2)
+                    + " for " + refresh.boundaries + " boundaries, wakeup = " + refresh.wakeup);
         }
 
-        // Return the next update time
-        return minUpdateTime;
+        return refresh;
     }
 
     /**
-     * Schedule an alarm to trigger an update at the next weather refresh or at
-     * the next event time boundary (start/end).
+     * Schedule an update at the next event time boundary (start/end)
      */
-    private void scheduleCalendarUpdate(Context context) {
-        PendingIntent pi = ClockWidgetService.getRefreshIntent(context);
-        long updateTime = calculateUpdateTime(context);
-
-        // Clear any old alarms and schedule the new alarm
-        // Since the updates are now only done very infrequently, it can wake the device to ensure
-        // the latest date is available when the user turns the screen on after a few hours sleep
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pi);
-        if (updateTime > 0) {
-            am.set(AlarmManager.RTC_WAKEUP, updateTime, pi);
+    private void scheduleCalendarUpdate(Context context, PreferenceSnapshot prefs) {
+        CalendarTimeline.Refresh refresh = calculateNextRefresh(context, prefs);
+
+        if (refresh != null) {
+            WakeupPlanner.schedule(context, WakeupPlanner.JOB_CALENDAR, refresh.time,
+                    refresh.wakeup ? DAILY_UPDATE_TOLERANCE_MS : 0, refresh.wakeup, 0);
+        } else {
+            WakeupPlanner.cancel(context, WakeupPlanner.JOB_CALENDAR);
         }
     }
 
     @Override
     public void onDestroy() {
+        mEventIndex.unregister();
         mCalendarInfo.clearEvents();
+        mRows = new ArrayList<Row>();
+        mRowsById.clear();
+        mRowStyle = null;
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.R;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formatters for the clock, weather and calendar texts, built once for the current locale,
+ * time zone and 12/24 hour setting. get() builds a new set as soon as any of them differs,
+ * invalidate() drops the current set right away when one of them is known to have changed.
+ *
+ * The formatters are not thread safe, each one is only used while holding the cache lock.
+ */
+public class FormatterCache {
+    private static final String TAG = "FormatterCache";
+    private static final boolean D = Constants.DEBUG;
+
+    private static FormatterCache sInstance;
+
+    private final Locale mLocale;
+    private final String mTimezone;
+    private final boolean m24Hour;
+
+    private final SimpleDateFormat mHoursFormat;
+    private final SimpleDateFormat mMinutesFormat;
+    private final SimpleDateFormat mAmPmFormat;
+    private final String mDateFormat;
+    private final SimpleDateFormat mDayFormat;
+    private final java.text.DateFormat mTimeFormat;
+
+    // Reused output buffer for DateUtils.formatDateRange()
+    private final StringBuilder mRangeBuilder = new StringBuilder(50);
+    private final Formatter mRangeFormatter;
+
+    private FormatterCache(Context context, Locale locale, String timezone, boolean is24Hour) {
+        mLocale = locale;
+        mTimezone = timezone;
+        m24Hour = is24Hour;
+
+        mHoursFormat = new SimpleDateFormat(context.getString(is24Hour
+                ? R.string.widget_24_hours_format_h_api_16
+                : R.string.widget_12_hours_format_h), locale);
+        mMinutesFormat = new SimpleDateFormat(
+                context.getString(R.string.widget_12_hours_format_no_ampm_m), locale);
+        mAmPmFormat = new SimpleDateFormat("a", locale);
+        mDateFormat = context.getString(R.string.abbrev_wday_month_day_no_year);
+        mDayFormat = new SimpleDateFormat("E", locale);
+        mTimeFormat = DateFormat.getTimeFormat(context);
+        mRangeFormatter = new Formatter(mRangeBuilder, locale);
+    }
+
+    /**
+     * @return The formatters for the current locale, time zone and time format setting
+     */
+    public static synchronized FormatterCache get(Context context) {
+        Locale locale = Locale.getDefault();
+        String timezone = TimeZone.getDefault().getID();
+        boolean is24Hour = DateFormat.is24HourFormat(context);
+
+        FormatterCache cache = sInstance;
+        if (cache == null || cache.m24Hour != is24Hour || !cache.mLocale.equals(locale)
+                || !TextUtils.equals(cache.mTimezone, timezone)) {
+            if (D) Log.d(TAG, "Building formatters for " + locale + ", " + timezone
+                    + ", 24 hour format = " + is24Hour);
+            cache = new FormatterCache(context, locale, timezone, is24Hour);
+            sInstance = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * Drop the current formatters, after a locale, time zone or time format change
+     */
+    public static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    public boolean is24HourFormat() {
+        return m24Hour;
+    }
+
+    public synchronized String formatHours(Date date) {
+        return mHoursFormat.format(date);
+    }
+
+    public synchronized String formatMinutes(Date date) {
+        return mMinutesFormat.format(date);
+    }
+
+    public synchronized String formatAmPm(Date date) {
+        return mAmPmFormat.format(date);
+    }
+
+    public CharSequence formatDate(Date date) {
+        return DateFormat.format(mDateFormat, date);
+    }
+
+    /**
+     * @return The abbreviated day and the time, as shown for the weather update time
+     */
+    public synchronized String formatDayAndTime(Date date) {
+        return mDayFormat.format(date) + " " + mTimeFormat.format(date);
+    }
+
+    /**
+     * Same as DateUtils.formatDateRange(), without allocating a new formatter each call
+     */
+    public synchronized String formatDateRange(Context context, long start, long end, int flags) {
+        mRangeBuilder.setLength(0);
+        return DateUtils.formatDateRange(context, mRangeFormatter, start, end, flags).toString();
+    }
+
+    /**
+     * Same as DateUtils.formatDateTime(), without allocating a new formatter each call
+     */
+    public String formatDateTime(Context context, long millis, int flags) {
+        return formatDateRange(context, millis, millis, flags);
+    }
+}
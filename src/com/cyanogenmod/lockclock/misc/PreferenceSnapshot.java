@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable, already parsed copy of the widget settings. A single instance is shared by the
+ * whole process and replaced as a whole whenever a setting changes, so the render code can
+ * read it without any SharedPreferences lookups or color parsing.
+ */
+public final class PreferenceSnapshot {
+    private static final String TAG = "PreferenceSnapshot";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String LOOKAHEAD_TODAY = "today";
+
+    private static volatile PreferenceSnapshot sCurrent;
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static OnSharedPreferenceChangeListener sListener;
+
+    // Clock
+    public final boolean showDigitalClock;
+    public final boolean showAlarm;
+    public final boolean useBoldFontForHours;
+    public final boolean useBoldFontForMinutes;
+    public final boolean useBoldFontForDateAndAlarms;
+    public final boolean showAmPmIndicator;
+    public final int clockFontColor;
+    public final int clockAlarmFontColor;
+
+    // Weather
+    public final boolean showWeather;
+    public final boolean showWeatherWhenMinimized;
+    public final boolean showWeatherLocation;
+    public final boolean showWeatherTimestamp;
+    public final boolean invertLowHighTemperature;
+    public final boolean useAlternateWeatherIcons;
+    public final boolean useMetricUnits;
+    public final boolean useCustomWeatherLocation;
+    public final long weatherRefreshIntervalInMs;
+    public final int weatherFontColor;
+    public final int weatherTimestampFontColor;
+
+    // Calendar
+    public final boolean showCalendar;
+    public final boolean showCalendarIcon;
+    public final boolean showEventsWithRemindersOnly;
+    public final boolean showAllDayEvents;
+    public final boolean calendarHighlightUpcomingEvents;
+    public final boolean calendarUpcomingEventsBold;
+    public final int calendarFontColor;
+    public final int calendarDetailsFontColor;
+    public final int calendarUpcomingEventsFontColor;
+    public final int calendarUpcomingEventsDetailsFontColor;
+    public final int calendarLocationMode;
+    public final int calendarDescriptionMode;
+    public final Set<String> calendarsToDisplay;
+    private final boolean mLookAheadToday;
+    private final long mLookAheadTime;
+
+    private PreferenceSnapshot(SharedPreferences prefs) {
+        showDigitalClock = prefs.getBoolean(Constants.CLOCK_DIGITAL, true);
+        showAlarm = prefs.getBoolean(Constants.CLOCK_SHOW_ALARM, true);
+        useBoldFontForHours = prefs.getBoolean(Constants.CLOCK_FONT, true);
+        useBoldFontForMinutes = prefs.getBoolean(Constants.CLOCK_FONT_MINUTES, false);
+        useBoldFontForDateAndAlarms = prefs.getBoolean(Constants.CLOCK_FONT_DATE, true);
+        showAmPmIndicator = prefs.getBoolean(Constants.CLOCK_AM_PM_INDICATOR, false);
+        clockFontColor = getColor(prefs, Constants.CLOCK_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        clockAlarmFontColor = getColor(prefs, Constants.CLOCK_ALARM_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+
+        showWeather = prefs.getBoolean(Constants.SHOW_WEATHER, true);
+        showWeatherWhenMinimized = prefs.getBoolean(Constants.WEATHER_SHOW_WHEN_MINIMIZED, true);
+        showWeatherLocation = prefs.getBoolean(Constants.WEATHER_SHOW_LOCATION, true);
+        showWeatherTimestamp = prefs.getBoolean(Constants.WEATHER_SHOW_TIMESTAMP, true);
+        invertLowHighTemperature = prefs.getBoolean(Constants.WEATHER_INVERT_LOWHIGH, false);
+        useAlternateWeatherIcons = prefs.getBoolean(Constants.WEATHER_USE_ALTERNATE_ICONS, true);
+        useMetricUnits = prefs.getBoolean(Constants.WEATHER_USE_METRIC, true);
+        useCustomWeatherLocation = prefs.getBoolean(Constants.WEATHER_USE_CUSTOM_LOCATION, false);
+        weatherRefreshIntervalInMs =
+                Long.parseLong(prefs.getString(Constants.WEATHER_REFRESH_INTERVAL, "60")) * 60 * 1000;
+        weatherFontColor = getColor(prefs, Constants.WEATHER_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        weatherTimestampFontColor = getColor(prefs, Constants.WEATHER_TIMESTAMP_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+
+        showCalendar = prefs.getBoolean(Constants.SHOW_CALENDAR, false);
+        showCalendarIcon = prefs.getBoolean(Constants.CALENDAR_ICON, true);
+        showEventsWithRemindersOnly = prefs.getBoolean(Constants.CALENDAR_REMINDERS_ONLY, false);
+        showAllDayEvents = !prefs.getBoolean(Constants.CALENDAR_HIDE_ALLDAY, false);
+        calendarHighlightUpcomingEvents =
+                prefs.getBoolean(Constants.CALENDAR_HIGHLIGHT_UPCOMING_EVENTS, false);
+        calendarUpcomingEventsBold = prefs.getBoolean(Constants.CALENDAR_UPCOMING_EVENTS_BOLD, false);
+        calendarFontColor = getColor(prefs, Constants.CALENDAR_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        calendarDetailsFontColor = getColor(prefs, Constants.CALENDAR_DETAILS_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+        calendarUpcomingEventsFontColor = getColor(prefs,
+                Constants.CALENDAR_UPCOMING_EVENTS_FONT_COLOR, Constants.DEFAULT_LIGHT_COLOR);
+        calendarUpcomingEventsDetailsFontColor = getColor(prefs,
+                Constants.CALENDAR_UPCOMING_EVENTS_DETAILS_FONT_COLOR, Constants.DEFAULT_DARK_COLOR);
+        calendarLocationMode =
+                Integer.parseInt(prefs.getString(Constants.CALENDAR_SHOW_LOCATION, "0"));
+        calendarDescriptionMode =
+                Integer.parseInt(prefs.getString(Constants.CALENDAR_SHOW_DESCRIPTION, "0"));
+
+        Set<String> calendars = prefs.getStringSet(Constants.CALENDAR_LIST, null);
+        calendarsToDisplay = calendars == null
+                ? null : Collections.unmodifiableSet(new HashSet<String>(calendars));
+
+        String lookAhead = prefs.getString(Constants.CALENDAR_LOOKAHEAD, "1209600000");
+        mLookAheadToday = LOOKAHEAD_TODAY.equals(lookAhead);
+        mLookAheadTime = mLookAheadToday ? 0 : Long.parseLong(lookAhead);
+    }
+
+    private static int getColor(SharedPreferences prefs, String key, String defValue) {
+        return Color.parseColor(prefs.getString(key, defValue));
+    }
+
+    /**
+     * The look ahead time depends on the current time if it is limited to today,
+     * so it can't be stored as a plain value
+     */
+    public long lookAheadTimeInMs() {
+        if (!mLookAheadToday) {
+            return mLookAheadTime;
+        }
+
+        long now = System.currentTimeMillis();
+
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 23);
+        cal.set(Calendar.MINUTE, 59);
+        cal.set(Calendar.SECOND, 59);
+        cal.set(Calendar.MILLISECOND, 500);
+        long endtimeToday = cal.getTimeInMillis();
+
+        return endtimeToday - now;
+    }
+
+    /**
+     * @return The current snapshot, building it and registering for changes on first use
+     */
+    public static PreferenceSnapshot get(Context context) {
+        PreferenceSnapshot snapshot = sCurrent;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        return reload(context);
+    }
+
+    /**
+     * Rebuild the snapshot from the stored preferences and make it the current one.
+     * Code that reads settings from within its own change listener should call this first,
+     * since the order in which SharedPreferences listeners are notified is undefined.
+     */
+    public static PreferenceSnapshot reload(Context context) {
+        SharedPreferences prefs = Preferences.getPrefs(context);
+        synchronized (PreferenceSnapshot.class) {
+            if (sListener == null) {
+                sListener = new OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                        if (!isDataKey(key)) {
+                            if (D) Log.v(TAG, "Preference " + key + " changed, rebuilding snapshot");
+                            sCurrent = new PreferenceSnapshot(prefs);
+                        }
+                    }
+                };
+                prefs.registerOnSharedPreferenceChangeListener(sListener);
+            }
+            PreferenceSnapshot snapshot = new PreferenceSnapshot(prefs);
+            sCurrent = snapshot;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Cached data stored alongside the settings, it is not part of the snapshot
+     */
+    private static boolean isDataKey(String key) {
+        return Constants.WEATHER_DATA.equals(key)
+                || Constants.WEATHER_LAST_UPDATE.equals(key)
+                || Constants.WEATHER_LOCATION_ID.equals(key);
+    }
+}
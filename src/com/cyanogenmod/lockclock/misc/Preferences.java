@@ -18,11 +18,10 @@ package com.cyanogenmod.lockclock.misc;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Color;
 
 import com.cyanogenmod.lockclock.weather.WeatherInfo;
+import com.cyanogenmod.lockclock.weather.WeatherRepository;
 
-import java.util.Calendar;
 import java.util.Set;
 
 public class Preferences {
@@ -30,124 +29,107 @@ public class Preferences {
     }
 
     public static boolean showDigitalClock(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_DIGITAL, true);
+        return PreferenceSnapshot.get(context).showDigitalClock;
     }
 
     public static boolean showAlarm(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_SHOW_ALARM, true);
+        return PreferenceSnapshot.get(context).showAlarm;
     }
 
     public static boolean showWeather(Context context) {
-        return getPrefs(context).getBoolean(Constants.SHOW_WEATHER, true);
+        return PreferenceSnapshot.get(context).showWeather;
     }
 
     public static boolean showCalendar(Context context) {
-        return getPrefs(context).getBoolean(Constants.SHOW_CALENDAR, false);
+        return PreferenceSnapshot.get(context).showCalendar;
     }
 
     public static boolean useBoldFontForHours(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_FONT, true);
+        return PreferenceSnapshot.get(context).useBoldFontForHours;
     }
 
     public static boolean useBoldFontForMinutes(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_FONT_MINUTES, false);
+        return PreferenceSnapshot.get(context).useBoldFontForMinutes;
     }
 
     public static boolean useBoldFontForDateAndAlarms(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_FONT_DATE, true);
+        return PreferenceSnapshot.get(context).useBoldFontForDateAndAlarms;
     }
 
     public static boolean showAmPmIndicator(Context context) {
-        return getPrefs(context).getBoolean(Constants.CLOCK_AM_PM_INDICATOR, false);
+        return PreferenceSnapshot.get(context).showAmPmIndicator;
     }
 
     public static int clockFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CLOCK_FONT_COLOR,
-                Constants.DEFAULT_LIGHT_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).clockFontColor;
     }
 
     public static int clockAlarmFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CLOCK_ALARM_FONT_COLOR,
-                Constants.DEFAULT_DARK_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).clockAlarmFontColor;
     }
 
     public static int weatherFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.WEATHER_FONT_COLOR,
-                Constants.DEFAULT_LIGHT_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).weatherFontColor;
     }
 
     public static int weatherTimestampFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.WEATHER_TIMESTAMP_FONT_COLOR,
-                Constants.DEFAULT_DARK_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).weatherTimestampFontColor;
     }
 
     public static int calendarFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CALENDAR_FONT_COLOR,
-                Constants.DEFAULT_LIGHT_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).calendarFontColor;
     }
 
     public static int calendarDetailsFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CALENDAR_DETAILS_FONT_COLOR,
-                Constants.DEFAULT_DARK_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).calendarDetailsFontColor;
     }
 
     public static boolean calendarHighlightUpcomingEvents(Context context) {
-        return getPrefs(context).getBoolean(Constants.CALENDAR_HIGHLIGHT_UPCOMING_EVENTS, false);
+        return PreferenceSnapshot.get(context).calendarHighlightUpcomingEvents;
     }
 
     public static boolean calendarUpcomingEventsBold(Context context) {
-        return getPrefs(context).getBoolean(Constants.CALENDAR_UPCOMING_EVENTS_BOLD, false);
+        return PreferenceSnapshot.get(context).calendarUpcomingEventsBold;
     }
 
     public static int calendarUpcomingEventsFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CALENDAR_UPCOMING_EVENTS_FONT_COLOR,
-                Constants.DEFAULT_LIGHT_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).calendarUpcomingEventsFontColor;
     }
 
     public static int calendarUpcomingEventsDetailsFontColor(Context context) {
-        int color = Color.parseColor(getPrefs(context).getString(Constants.CALENDAR_UPCOMING_EVENTS_DETAILS_FONT_COLOR,
-                Constants.DEFAULT_DARK_COLOR));
-        return color;
+        return PreferenceSnapshot.get(context).calendarUpcomingEventsDetailsFontColor;
     }
 
     public static boolean showWeatherWhenMinimized(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_SHOW_WHEN_MINIMIZED, true);
+        return PreferenceSnapshot.get(context).showWeatherWhenMinimized;
     }
 
     public static boolean showWeatherLocation(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_SHOW_LOCATION, true);
+        return PreferenceSnapshot.get(context).showWeatherLocation;
     }
 
     public static boolean showWeatherTimestamp(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_SHOW_TIMESTAMP, true);
+        return PreferenceSnapshot.get(context).showWeatherTimestamp;
     }
 
     public static boolean invertLowHighTemperature(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_INVERT_LOWHIGH, false);
+        return PreferenceSnapshot.get(context).invertLowHighTemperature;
     }
 
     public static boolean useAlternateWeatherIcons(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_USE_ALTERNATE_ICONS, true);
+        return PreferenceSnapshot.get(context).useAlternateWeatherIcons;
     }
 
     public static boolean useMetricUnits(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_USE_METRIC, true);
+        return PreferenceSnapshot.get(context).useMetricUnits;
     }
 
     public static long weatherRefreshIntervalInMs(Context context) {
-        String value = getPrefs(context).getString(Constants.WEATHER_REFRESH_INTERVAL, "60");
-        return Long.parseLong(value) * 60 * 1000;
+        return PreferenceSnapshot.get(context).weatherRefreshIntervalInMs;
     }
 
     public static boolean useCustomWeatherLocation(Context context) {
-        return getPrefs(context).getBoolean(Constants.WEATHER_USE_CUSTOM_LOCATION, false);
+        return PreferenceSnapshot.get(context).useCustomWeatherLocation;
     }
 
     public static String customWeatherLocationId(Context context) {
@@ -163,21 +145,15 @@ public class Preferences {
     }
 
     public static void setCachedWeatherInfo(Context context, long timestamp, WeatherInfo data) {
-        SharedPreferences.Editor editor = getPrefs(context).edit();
-        editor.putLong(Constants.WEATHER_LAST_UPDATE, timestamp);
-        if (data != null) {
-            editor.putString(Constants.WEATHER_DATA, data.toSerializedString());
-        }
-        editor.apply();
+        WeatherRepository.update(context, timestamp, data);
     }
 
     public static long lastWeatherUpdateTimestamp(Context context) {
-        return getPrefs(context).getLong(Constants.WEATHER_LAST_UPDATE, 0);
+        return WeatherRepository.getLastUpdateTimestamp(context);
     }
 
     public static WeatherInfo getCachedWeatherInfo(Context context) {
-        return WeatherInfo.fromSerializedString(context,
-                getPrefs(context).getString(Constants.WEATHER_DATA, null));
+        return WeatherRepository.getWeatherInfo(context);
     }
 
     public static String getCachedLocationId(Context context) {
@@ -189,40 +165,23 @@ public class Preferences {
     }
 
     public static Set<String> calendarsToDisplay(Context context) {
-        return getPrefs(context).getStringSet(Constants.CALENDAR_LIST, null);
+        return PreferenceSnapshot.get(context).calendarsToDisplay;
     }
 
     public static boolean showEventsWithRemindersOnly(Context context) {
-        return getPrefs(context).getBoolean(Constants.CALENDAR_REMINDERS_ONLY, false);
+        return PreferenceSnapshot.get(context).showEventsWithRemindersOnly;
     }
 
     public static boolean showAllDayEvents(Context context) {
-        return !getPrefs(context).getBoolean(Constants.CALENDAR_HIDE_ALLDAY, false);
+        return PreferenceSnapshot.get(context).showAllDayEvents;
     }
 
     public static boolean showCalendarIcon(Context context) {
-        return getPrefs(context).getBoolean(Constants.CALENDAR_ICON, true);
+        return PreferenceSnapshot.get(context).showCalendarIcon;
     }
 
     public static long lookAheadTimeInMs(Context context) {
-        long lookAheadTime;
-        String preferenceSetting = getPrefs(context).getString(Constants.CALENDAR_LOOKAHEAD, "1209600000");
-
-        if (preferenceSetting.equals("today")) {
-            long now = System.currentTimeMillis();
-
-            Calendar cal = Calendar.getInstance();
-            cal.set(Calendar.HOUR_OF_DAY, 23);
-            cal.set(Calendar.MINUTE, 59);
-            cal.set(Calendar.SECOND, 59);
-            cal.set(Calendar.MILLISECOND, 500);
-            long endtimeToday = cal.getTimeInMillis();
-
-            lookAheadTime = endtimeToday - now;
-        } else {
-            lookAheadTime = Long.parseLong(preferenceSetting);
-        }
-        return lookAheadTime;
+        return PreferenceSnapshot.get(context).lookAheadTimeInMs();
     }
 
     public static final int SHOW_NEVER = 0;
@@ -230,11 +189,11 @@ public class Preferences {
     public static final int SHOW_ALWAYS = 2;
 
     public static int calendarLocationMode(Context context) {
-        return Integer.parseInt(getPrefs(context).getString(Constants.CALENDAR_SHOW_LOCATION, "0"));
+        return PreferenceSnapshot.get(context).calendarLocationMode;
     }
 
     public static int calendarDescriptionMode(Context context) {
-        return Integer.parseInt(getPrefs(context).getString(Constants.CALENDAR_SHOW_DESCRIPTION, "0"));
+        return PreferenceSnapshot.get(context).calendarDescriptionMode;
     }
 
     public static SharedPreferences getPrefs(Context context) {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Size bounded cache for the decoded icon resources and their color overlaid versions.
+ * Cached bitmaps are shared and handed to RemoteViews, so they must never be modified
+ * or recycled by the callers.
+ */
+public class TintedBitmapCache {
+    private static final String TAG = "TintedBitmapCache";
+    private static final boolean D = Constants.DEBUG;
+
+    // The icons are small, a fraction of the heap is plenty for all color combinations
+    private static final int MAX_SIZE_BYTES =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 2 * 1024 * 1024);
+
+    private static final LruCache<Long, Bitmap> sSources = new BitmapLruCache<Long>(MAX_SIZE_BYTES / 2);
+    private static final LruCache<Key, Bitmap> sTinted = new BitmapLruCache<Key>(MAX_SIZE_BYTES / 2);
+
+    private TintedBitmapCache() {
+    }
+
+    private static class BitmapLruCache<K> extends LruCache<K, Bitmap> {
+        BitmapLruCache(int maxSizeBytes) {
+            super(maxSizeBytes);
+        }
+
+        @Override
+        protected int sizeOf(K key, Bitmap value) {
+            return value.getByteCount();
+        }
+    }
+
+    private static class Key {
+        final int resId;
+        final int color;
+        final int density;
+
+        Key(int resId, int color, int density) {
+            this.resId = resId;
+            this.color = color;
+            this.density = density;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + resId;
+            result = prime * result + color;
+            result = prime * result + density;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return resId == other.resId && color == other.color && density == other.density;
+        }
+    }
+
+    private static Long sourceKey(int resId, int density) {
+        return ((long) resId << 32) | (density & 0xffffffffL);
+    }
+
+    public static Bitmap getSource(int resId, int density) {
+        return sSources.get(sourceKey(resId, density));
+    }
+
+    public static void putSource(int resId, int density, Bitmap bitmap) {
+        sSources.put(sourceKey(resId, density), bitmap);
+    }
+
+    public static Bitmap getTinted(int resId, int color, int density) {
+        return sTinted.get(new Key(resId, color, density));
+    }
+
+    public static void putTinted(int resId, int color, int density, Bitmap bitmap) {
+        sTinted.put(new Key(resId, color, density), bitmap);
+    }
+
+    public static int getHitCount() {
+        return sTinted.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sTinted.missCount();
+    }
+
+    /**
+     * Release memory according to the level passed to Application.onTrimMemory()
+     */
+    public static void trimMemory(int level) {
+        if (D) Log.d(TAG, "Trimming memory at level " + level + ", " + dump());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The tinted bitmaps can be rebuilt from the sources without decoding again
+            sTinted.evictAll();
+        }
+    }
+
+    public static void evictAll() {
+        sSources.evictAll();
+        sTinted.evictAll();
+    }
+
+    public static String dump() {
+        return "tinted: " + sTinted + ", sources: " + sSources;
+    }
+}
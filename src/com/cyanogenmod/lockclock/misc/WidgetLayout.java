@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+/**
+ * Immutable layout decisions for a single widget instance, derived from its size and host.
+ * Instances are created and cached by WidgetUtils.getWidgetLayout().
+ */
+public final class WidgetLayout {
+    // The clock type the decisions were made for
+    public final boolean digitalClock;
+    public final boolean isKeyguard;
+
+    // Only the small weather panel fits, the full one doesn't
+    public final boolean fitsSmallWidgetOnly;
+    public final boolean canFitWeather;
+    public final boolean canFitCalendar;
+
+    // Scale factor of the clock fonts
+    public final float scale;
+
+    WidgetLayout(boolean digitalClock, boolean isKeyguard, boolean fitsSmallWidgetOnly,
+            boolean canFitWeather, boolean canFitCalendar, float scale) {
+        this.digitalClock = digitalClock;
+        this.isKeyguard = isKeyguard;
+        this.fitsSmallWidgetOnly = fitsSmallWidgetOnly;
+        this.canFitWeather = canFitWeather;
+        this.canFitCalendar = canFitCalendar;
+        this.scale = scale;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("WidgetLayout [digitalClock=").append(digitalClock);
+        builder.append(", isKeyguard=").append(isKeyguard);
+        builder.append(", fitsSmallWidgetOnly=").append(fitsSmallWidgetOnly);
+        builder.append(", canFitWeather=").append(canFitWeather);
+        builder.append(", canFitCalendar=").append(canFitCalendar);
+        builder.append(", scale=").append(scale);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -18,6 +18,7 @@
 package com.cyanogenmod.lockclock.misc;
 
 import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -33,6 +34,7 @@ import android.graphics.Bitmap.Config;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 
 import com.cyanogenmod.lockclock.R;
@@ -45,27 +47,95 @@ public class WidgetUtils {
     private static final String TAG = "WidgetUtils";
     private static final boolean D = Constants.DEBUG;
 
+    // Layout decisions by widget id
+    private static final SparseArray<WidgetLayout> sLayouts = new SparseArray<WidgetLayout>();
+
     /**
      *  Load a resource by Id and overlay with a specified color
+     *  The returned bitmap is shared through the TintedBitmapCache and must not be modified
      */
     public static Bitmap getOverlaidBitmap(Context context, int resId, int overlayColor) {
         final Resources res = context.getResources();
-        final Bitmap src = BitmapFactory.decodeResource(res, resId);
-        final Bitmap dest = Bitmap.createBitmap(src.getWidth(), src.getHeight(), Config.ARGB_8888);
+        final int density = res.getDisplayMetrics().densityDpi;
+        Bitmap dest = TintedBitmapCache.getTinted(resId, overlayColor, density);
+        if (dest != null) {
+            return dest;
+        }
+
+        Bitmap src = TintedBitmapCache.getSource(resId, density);
+        if (src == null) {
+            src = BitmapFactory.decodeResource(res, resId);
+            TintedBitmapCache.putSource(resId, density, src);
+        }
+        dest = Bitmap.createBitmap(src.getWidth(), src.getHeight(), Config.ARGB_8888);
         Canvas c = new Canvas(dest);
         final Paint paint = new Paint();
 
         // Overlay the selected color and set the imageview
         paint.setColorFilter(new PorterDuffColorFilter(overlayColor, PorterDuff.Mode.SRC_ATOP));
         c.drawBitmap(src, 0, 0, paint);
+        TintedBitmapCache.putTinted(resId, overlayColor, density, dest);
+        if (D) Log.v(TAG, "Created overlaid bitmap for " + resId + ", " + TintedBitmapCache.dump());
         return dest;
     }
 
     /**
-     *  Decide whether to show the small Weather panel
+     *  Get the layout decisions for a widget. They are computed from the widget options on
+     *  first use and cached until invalidateWidgetLayout() is called for the widget.
      */
-    public static boolean showSmallWidget(Context context, int id, boolean digitalClock, boolean isKeyguard) {
+    public static WidgetLayout getWidgetLayout(Context context, int id, boolean digitalClock) {
+        synchronized (sLayouts) {
+            WidgetLayout layout = sLayouts.get(id);
+            if (layout != null && layout.digitalClock == digitalClock) {
+                return layout;
+            }
+        }
+
         Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+
+        // Determine if its a home or a lock screen widget
+        boolean isKeyguard = false;
+        if (options != null && isTextClockAvailable()) {
+            // This is only available on API 17+, make sure we are not calling it on API16
+            // This generates an API level Lint warning, ignore it
+            int category = options.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
+            isKeyguard = category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+        }
+        if (D) Log.d(TAG, "For Widget id " + id + " isKeyguard is set to " + isKeyguard);
+
+        WidgetLayout layout = new WidgetLayout(digitalClock, isKeyguard,
+                showSmallWidget(context, options, digitalClock, isKeyguard),
+                canFitWeather(context, options, digitalClock, isKeyguard),
+                canFitCalendar(context, options, digitalClock),
+                digitalClock ? getScaleRatio(context, options) : 1f);
+        synchronized (sLayouts) {
+            sLayouts.put(id, layout);
+        }
+        return layout;
+    }
+
+    /**
+     *  Forget the cached layout of a widget, after its options have changed
+     */
+    public static void invalidateWidgetLayout(int id) {
+        synchronized (sLayouts) {
+            sLayouts.remove(id);
+        }
+    }
+
+    /**
+     *  Forget all cached layouts, after a configuration change
+     */
+    public static void invalidateWidgetLayouts() {
+        synchronized (sLayouts) {
+            sLayouts.clear();
+        }
+    }
+
+    /**
+     *  Decide whether to show the small Weather panel
+     */
+    private static boolean showSmallWidget(Context context, Bundle options, boolean digitalClock, boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return false;
@@ -99,8 +169,7 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the full Weather panel
      */
-    public static boolean canFitWeather(Context context, int id, boolean digitalClock, boolean isKeyguard) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static boolean canFitWeather(Context context, Bundle options, boolean digitalClock, boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
@@ -133,8 +202,7 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the Calendar panel
      */
-    public static boolean canFitCalendar(Context context, int id, boolean digitalClock) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static boolean canFitCalendar(Context context, Bundle options, boolean digitalClock) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
@@ -159,8 +227,7 @@ public class WidgetUtils {
     /**
      *  Calculate the scale factor of the fonts in the widget
      */
-    public static float getScaleRatio(Context context, int id) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static float getScaleRatio(Context context, Bundle options) {
         if (options != null) {
             int minWidth = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH);
             if (minWidth == 0) {
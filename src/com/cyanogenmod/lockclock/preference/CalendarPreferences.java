@@ -21,9 +21,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.ListPreference;
 import android.preference.MultiSelectListPreference;
 import android.preference.Preference;
@@ -46,6 +49,16 @@ public class CalendarPreferences extends PreferenceFragment implements
     private ListPreference mEventDetailsFontColor;
     private ListPreference mHighlightFontColor;
     private ListPreference mHighlightDetailsFontColor;
+    private MultiSelectListPreference mCalendarList;
+    private CalendarLoadTask mLoadTask;
+
+    // The calendar list, kept across fragment instances until the calendars change.
+    // Only accessed from the main thread.
+    private static CalendarEntries sCalendarEntries;
+    private static int sCalendarGeneration;
+    private static int sCalendarEntriesGeneration = -1;
+    private static ContentObserver sCalendarObserver;
+    private static CalendarPreferences sResumedInstance;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -54,12 +67,10 @@ public class CalendarPreferences extends PreferenceFragment implements
         addPreferencesFromResource(R.xml.preferences_calendar);
         mContext = getActivity();
 
-        // The calendar list entries and values are determined at run time, not in XML
-        MultiSelectListPreference calendarList =
-                (MultiSelectListPreference) findPreference(Constants.CALENDAR_LIST);
-        CalendarEntries calEntries = CalendarEntries.findCalendars(getActivity());
-        calendarList.setEntries(calEntries.getEntries());
-        calendarList.setEntryValues(calEntries.getEntryValues());
+        // The calendar list entries and values are determined at run time, not in XML.
+        // They are loaded in the background, the list is disabled until they are known.
+        mCalendarList = (MultiSelectListPreference) findPreference(Constants.CALENDAR_LIST);
+        applyCalendarEntries();
 
         mFontColor = (ListPreference) findPreference(Constants.CALENDAR_FONT_COLOR);
         mEventDetailsFontColor = (ListPreference) findPreference(Constants.CALENDAR_DETAILS_FONT_COLOR);
@@ -72,12 +83,28 @@ public class CalendarPreferences extends PreferenceFragment implements
     public void onResume() {
         super.onResume();
         getPreferenceManager().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        sResumedInstance = this;
+        if (sCalendarEntriesGeneration != sCalendarGeneration) {
+            loadCalendars();
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
         getPreferenceManager().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        if (sResumedInstance == this) {
+            sResumedInstance = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
     }
 
     @Override
@@ -96,6 +123,65 @@ public class CalendarPreferences extends PreferenceFragment implements
     // Utility classes and supporting methods
     //===============================================================================================
 
+    private void applyCalendarEntries() {
+        if (sCalendarEntries == null) {
+            mCalendarList.setEnabled(false);
+            return;
+        }
+        mCalendarList.setEntries(sCalendarEntries.getEntries());
+        mCalendarList.setEntryValues(sCalendarEntries.getEntryValues());
+        mCalendarList.setEnabled(true);
+    }
+
+    private void loadCalendars() {
+        if (mLoadTask != null) {
+            return;
+        }
+        if (sCalendarObserver == null) {
+            // Registered for the lifetime of the process, the cached list lives as long
+            sCalendarObserver = new ContentObserver(new Handler()) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    sCalendarGeneration++;
+                    if (sResumedInstance != null) {
+                        sResumedInstance.loadCalendars();
+                    }
+                }
+            };
+            mContext.getApplicationContext().getContentResolver().registerContentObserver(
+                    CalendarContract.Calendars.CONTENT_URI, true, sCalendarObserver);
+        }
+        mLoadTask = new CalendarLoadTask(mContext.getApplicationContext(), sCalendarGeneration);
+        mLoadTask.execute();
+    }
+
+    private class CalendarLoadTask extends AsyncTask<Void, Void, CalendarEntries> {
+        private final Context mAppContext;
+        private final int mGeneration;
+
+        CalendarLoadTask(Context context, int generation) {
+            mAppContext = context;
+            mGeneration = generation;
+        }
+
+        @Override
+        protected CalendarEntries doInBackground(Void... params) {
+            return CalendarEntries.findCalendars(mAppContext);
+        }
+
+        @Override
+        protected void onPostExecute(CalendarEntries result) {
+            mLoadTask = null;
+            sCalendarEntries = result;
+            sCalendarEntriesGeneration = mGeneration;
+            applyCalendarEntries();
+            if (mGeneration != sCalendarGeneration && isResumed()) {
+                // The calendars changed while loading
+                loadCalendars();
+            }
+        }
+    }
+
     private static class CalendarEntries {
         private final CharSequence[] mEntries;
         private final CharSequence[] mEntryValues;
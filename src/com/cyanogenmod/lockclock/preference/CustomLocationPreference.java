@@ -23,9 +23,11 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.EditTextPreference;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
@@ -33,12 +35,19 @@ import android.widget.Toast;
 import com.cyanogenmod.lockclock.R;
 import com.cyanogenmod.lockclock.misc.Preferences;
 import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
-import com.cyanogenmod.lockclock.weather.YahooWeatherProvider;
+import com.cyanogenmod.lockclock.weather.WeatherProviderRegistry;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 public class CustomLocationPreference extends EditTextPreference {
+    // Recent search results, by normalized query
+    private static final int MAX_CACHED_SEARCHES = 16;
+    private static final long SEARCH_CACHE_TTL_MS = 60 * 60 * 1000;
+    private static final LruCache<String, CachedSearch> sSearchCache =
+            new LruCache<String, CachedSearch>(MAX_CACHED_SEARCHES);
+
     public CustomLocationPreference(Context context) {
         super(context);
     }
@@ -60,7 +69,13 @@ public class CustomLocationPreference extends EditTextPreference {
             @Override
             public void onClick(View v) {
                 CustomLocationPreference.this.onClick(d, DialogInterface.BUTTON_POSITIVE);
-                new WeatherLocationTask(d, getEditText().getText().toString()).execute();
+                String location = getEditText().getText().toString();
+                List<LocationResult> results = getCachedSearch(location);
+                if (results != null) {
+                    showResults(d, results);
+                } else {
+                    new WeatherLocationTask(d, location).execute();
+                }
             }
         });
     }
@@ -82,6 +97,116 @@ public class CustomLocationPreference extends EditTextPreference {
         super.onDialogClosed(false);
     }
 
+    private static String getSearchKey(String location) {
+        Locale locale = Locale.getDefault();
+        String query = location.trim().replaceAll("\\s+", " ").toLowerCase(locale);
+        return locale + "|" + query;
+    }
+
+    private static List<LocationResult> getCachedSearch(String location) {
+        String key = getSearchKey(location);
+        CachedSearch search = sSearchCache.get(key);
+        if (search == null) {
+            return null;
+        }
+        long age = SystemClock.elapsedRealtime() - search.timestamp;
+        if (age > SEARCH_CACHE_TTL_MS) {
+            sSearchCache.remove(key);
+            return null;
+        }
+        return search.results;
+    }
+
+    private static void putCachedSearch(String location, List<LocationResult> results) {
+        sSearchCache.put(getSearchKey(location),
+                new CachedSearch(results, SystemClock.elapsedRealtime()));
+    }
+
+    private static class CachedSearch {
+        final List<LocationResult> results;
+        final long timestamp;
+
+        CachedSearch(List<LocationResult> results, long timestamp) {
+            this.results = results;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private void showResults(Dialog dialog, List<LocationResult> results) {
+        final Context context = getContext();
+
+        if (results == null || results.isEmpty()) {
+            Toast.makeText(context,
+                    context.getString(R.string.weather_retrieve_location_dialog_title),
+                    Toast.LENGTH_SHORT)
+                    .show();
+        } else if (results.size() > 1) {
+            handleResultDisambiguation(dialog, results);
+        } else {
+            applyLocation(dialog, results.get(0));
+        }
+    }
+
+    private void handleResultDisambiguation(final Dialog locationDialog,
+            final List<LocationResult> results) {
+        CharSequence[] items = buildItemList(results);
+        new AlertDialog.Builder(getContext())
+                .setSingleChoiceItems(items, -1, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        applyLocation(locationDialog, results.get(which));
+                        dialog.dismiss();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .setTitle(R.string.weather_select_location)
+                .show();
+    }
+
+    private CharSequence[] buildItemList(List<LocationResult> results) {
+        boolean needCountry = false, needPostal = false;
+        String countryId = results.get(0).countryId;
+        HashSet<String> postalIds = new HashSet<String>();
+
+        for (LocationResult result : results) {
+            if (!TextUtils.equals(result.countryId, countryId)) {
+                needCountry = true;
+            }
+            String postalId = result.countryId + "##" + result.city;
+            if (postalIds.contains(postalId)) {
+                needPostal = true;
+            }
+            postalIds.add(postalId);
+            if (needPostal && needCountry) {
+                break;
+            }
+        }
+
+        int count = results.size();
+        CharSequence[] items = new CharSequence[count];
+        for (int i = 0; i < count; i++) {
+            LocationResult result = results.get(i);
+            StringBuilder builder = new StringBuilder();
+            if (needPostal && result.postal != null) {
+                builder.append(result.postal).append(" ");
+            }
+            builder.append(result.city);
+            if (needCountry) {
+                String country = result.country != null
+                        ? result.country : result.countryId;
+                builder.append(" (").append(country).append(")");
+            }
+            items[i] = builder.toString();
+        }
+        return items;
+    }
+
+    private void applyLocation(Dialog dialog, final LocationResult result) {
+        Preferences.setCustomWeatherLocationId(getContext(), result.id);
+        setText(result.city);
+        dialog.dismiss();
+    }
+
     private class WeatherLocationTask extends AsyncTask<Void, Void, List<LocationResult>> {
         private Dialog mDialog;
         private ProgressDialog mProgressDialog;
@@ -104,6 +229,7 @@ public class CustomLocationPreference extends EditTextPreference {
             mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
                 @Override
                 public void onCancel(DialogInterface dialog) {
+                    // Interrupting the search aborts its network request
                     cancel(true);
                 }
             });
@@ -112,85 +238,18 @@ public class CustomLocationPreference extends EditTextPreference {
 
         @Override
         protected List<LocationResult> doInBackground(Void... input) {
-            return new YahooWeatherProvider(getContext()).getLocations(mLocation);
+            return WeatherProviderRegistry.get(getContext()).getLocations(mLocation);
         }
 
         @Override
         protected void onPostExecute(List<LocationResult> results) {
             super.onPostExecute(results);
 
-            final Context context = getContext();
-
-            if (results == null || results.isEmpty()) {
-                Toast.makeText(context,
-                        context.getString(R.string.weather_retrieve_location_dialog_title),
-                        Toast.LENGTH_SHORT)
-                        .show();
-            } else if (results.size() > 1) {
-                handleResultDisambiguation(results);
-            } else {
-                applyLocation(results.get(0));
+            if (results != null && !results.isEmpty()) {
+                putCachedSearch(mLocation, results);
             }
+            showResults(mDialog, results);
             mProgressDialog.dismiss();
         }
-
-        private void handleResultDisambiguation(final List<LocationResult> results) {
-            CharSequence[] items = buildItemList(results);
-            new AlertDialog.Builder(getContext())
-                    .setSingleChoiceItems(items, -1, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            applyLocation(results.get(which));
-                            dialog.dismiss();
-                        }
-                    })
-                    .setNegativeButton(android.R.string.cancel, null)
-                    .setTitle(R.string.weather_select_location)
-                    .show();
-        }
-
-        private CharSequence[] buildItemList(List<LocationResult> results) {
-            boolean needCountry = false, needPostal = false;
-            String countryId = results.get(0).countryId;
-            HashSet<String> postalIds = new HashSet<String>();
-
-            for (LocationResult result : results) {
-                if (!TextUtils.equals(result.countryId, countryId)) {
-                    needCountry = true;
-                }
-                String postalId = result.countryId + "##" + result.city;
-                if (postalIds.contains(postalId)) {
-                    needPostal = true;
-                }
-                postalIds.add(postalId);
-                if (needPostal && needCountry) {
-                    break;
-                }
-            }
-
-            int count = results.size();
-            CharSequence[] items = new CharSequence[count];
-            for (int i = 0; i < count; i++) {
-                LocationResult result = results.get(i);
-                StringBuilder builder = new StringBuilder();
-                if (needPostal && result.postal != null) {
-                    builder.append(result.postal).append(" ");
-                }
-                builder.append(result.city);
-                if (needCountry) {
-                    String country = result.country != null
-                            ? result.country : result.countryId;
-                    builder.append(" (").append(country).append(")");
-                }
-                items[i] = builder.toString();
-            }
-            return items;
-        }
-
-        private void applyLocation(final LocationResult result) {
-            Preferences.setCustomWeatherLocationId(getContext(), result.id);
-            setText(result.city);
-            mDialog.dismiss();
-        }
     }
 }
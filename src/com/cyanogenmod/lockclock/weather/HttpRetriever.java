@@ -17,28 +17,242 @@
 package com.cyanogenmod.lockclock.weather;
 
 import android.util.Log;
+import android.util.LruCache;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
 
 public class HttpRetriever {
     private static final String TAG = "HttpRetriever";
 
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 20 * 1000;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int MAX_CACHED_RESPONSES = 16;
+
+    private static DefaultHttpClient sClient;
+    private static int sConnectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private static int sSocketTimeout = DEFAULT_SOCKET_TIMEOUT_MS;
+
+    // Validators and results of earlier responses, used for conditional requests
+    private static final LruCache<String, CachedResponse> sResponseCache =
+            new LruCache<String, CachedResponse>(MAX_CACHED_RESPONSES);
+
+    // Requests in flight, by the thread executing them
+    private static final HashMap<Thread, HttpGet> sActiveRequests = new HashMap<Thread, HttpGet>();
+
+    /**
+     * Consumes a response body directly from the network stream
+     */
+    public interface StreamParser<T> {
+        /**
+         * Unchecked exceptions thrown here are passed on to the caller of retrieve()
+         *
+         * @param charset The charset announced by the server, or null if none
+         * @return The parse result, or null on failure
+         */
+        T parse(InputStream in, String charset) throws IOException;
+    }
+
+    private static class CachedResponse {
+        final String etag;
+        final String lastModified;
+        final Class<?> parserClass;
+        final Object result;
+
+        CachedResponse(String etag, String lastModified, Class<?> parserClass, Object result) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.parserClass = parserClass;
+            this.result = result;
+        }
+    }
+
+    private static final StreamParser<String> STRING_PARSER = new StreamParser<String>() {
+        @Override
+        public String parse(InputStream in, String charset) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString(charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET);
+        }
+    };
+
+    /**
+     * Change the timeouts used for connecting and for waiting on data of all further requests
+     */
+    public static synchronized void setTimeouts(int connectTimeoutMs, int socketTimeoutMs) {
+        sConnectTimeout = connectTimeoutMs;
+        sSocketTimeout = socketTimeoutMs;
+        if (sClient != null) {
+            applyTimeouts(sClient.getParams());
+        }
+    }
+
+    private static void applyTimeouts(HttpParams params) {
+        HttpConnectionParams.setConnectionTimeout(params, sConnectTimeout);
+        HttpConnectionParams.setSoTimeout(params, sSocketTimeout);
+        ConnManagerParams.setTimeout(params, sConnectTimeout);
+    }
+
+    /**
+     * @return The client shared by all requests, keeping connections alive between them
+     */
+    private static synchronized DefaultHttpClient getClient() {
+        if (sClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+            applyTimeouts(params);
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+
+            sClient = new DefaultHttpClient(manager, params);
+        }
+        return sClient;
+    }
+
+    private static InputStream getUngzippedContent(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        Header encoding = entity.getContentEncoding();
+        if (in != null && encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
     public static String retrieve(String url) {
+        return retrieve(url, STRING_PARSER);
+    }
+
+    /**
+     * Abort the request the given thread is executing, if any. This closes its connection
+     * right away, the thread returns from retrieve() with a null result.
+     */
+    public static void abort(Thread thread) {
+        HttpGet request;
+        synchronized (sActiveRequests) {
+            request = sActiveRequests.get(thread);
+        }
+        if (request != null) {
+            Log.d(TAG, "Aborting request for " + request.getURI());
+            request.abort();
+        }
+    }
+
+    /**
+     * Retrieve the given url and hand the response body to the parser while it is still
+     * being received. The parser may return before reading all of the body, the rest of
+     * it is discarded without being read.
+     *
+     * If an earlier response carried an ETag or Last-Modified header, the request is made
+     * conditional and the earlier result is returned again if the server answers with 304.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T retrieve(String url, StreamParser<T> parser) {
         HttpGet request = new HttpGet(url);
+        request.addHeader("Accept-Encoding", "gzip");
+
+        CachedResponse cached = sResponseCache.get(url);
+        if (cached != null && cached.parserClass == parser.getClass()) {
+            if (cached.etag != null) {
+                request.addHeader("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                request.addHeader("If-Modified-Since", cached.lastModified);
+            }
+        } else {
+            cached = null;
+        }
+
+        final Thread thread = Thread.currentThread();
+        synchronized (sActiveRequests) {
+            sActiveRequests.put(thread, request);
+        }
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
+            HttpResponse response = getClient().execute(request);
+            int status = response.getStatusLine().getStatusCode();
             HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity);
+
+            if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                Log.d(TAG, "Not modified: " + url);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                return (T) cached.result;
+            }
+            if (entity == null) {
+                return null;
             }
+
+            T result = null;
+            boolean fullyRead = false;
+            InputStream in = getUngzippedContent(entity);
+            try {
+                result = parser.parse(in, EntityUtils.getContentCharSet(entity));
+                fullyRead = in.read() == -1;
+            } finally {
+                if (fullyRead) {
+                    // Hands the connection back to the pool
+                    in.close();
+                } else {
+                    // Drops the connection instead of reading any unparsed remainder
+                    request.abort();
+                }
+            }
+
+            if (status == HttpStatus.SC_OK && result != null) {
+                Header etag = response.getFirstHeader("ETag");
+                Header lastModified = response.getFirstHeader("Last-Modified");
+                if (etag != null || lastModified != null) {
+                    sResponseCache.put(url, new CachedResponse(
+                            etag != null ? etag.getValue() : null,
+                            lastModified != null ? lastModified.getValue() : null,
+                            parser.getClass(), result));
+                }
+            }
+            return result;
         } catch (IOException e) {
+            request.abort();
             Log.e(TAG, "Couldn't retrieve data", e);
+        } finally {
+            synchronized (sActiveRequests) {
+                sActiveRequests.remove(thread);
+            }
         }
         return null;
     }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent cache of resolved locations, so updates from a place that was resolved before
+ * don't need a (rate limited) placefinder request.
+ *
+ * Entries are indexed by a grid of GRID_SIZE_DEGREES cells. A lookup checks the cell of the
+ * location and its neighbours for the closest entry within MAX_DISTANCE_METERS that was
+ * resolved for the same locale and is not older than MAX_AGE_MS.
+ *
+ * File layout:
+ *   byte    file version
+ *   int     entry count
+ *   entries of: double latitude, double longitude, UTF locale, UTF id, UTF city,
+ *               long time resolved
+ */
+public class LocationCache {
+    private static final String TAG = "LocationCache";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String FILE_NAME = "location_cache.bin";
+    // Version 1 entries were keyed by country only
+    private static final int FILE_VERSION = 2;
+
+    // Roughly 5.5km in latitude, at least as large as MAX_DISTANCE_METERS up to 60 degrees
+    private static final double GRID_SIZE_DEGREES = 0.05;
+    private static final float MAX_DISTANCE_METERS = 2500;
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+
+    private static LocationCache sInstance;
+
+    private final File mFile;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final LongSparseArray<List<Entry>> mGrid = new LongSparseArray<List<Entry>>();
+
+    private LocationCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        load();
+    }
+
+    public static synchronized LocationCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The cached result for a location close to the given one, or null if none
+     */
+    public synchronized LocationResult lookup(Location location, String locale) {
+        if (locale == null) {
+            locale = "";
+        }
+        final long now = System.currentTimeMillis();
+        final double latitude = location.getLatitude();
+        final double longitude = location.getLongitude();
+        final int row = getRow(latitude);
+        final int column = getColumn(longitude);
+        final float[] distance = new float[1];
+
+        Entry best = null;
+        float bestDistance = MAX_DISTANCE_METERS;
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = column - 1; c <= column + 1; c++) {
+                List<Entry> cell = mGrid.get(getCellKey(r, c));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry entry : cell) {
+                    if (now - entry.resolvedAt > MAX_AGE_MS || entry.resolvedAt > now
+                            || !entry.locale.equals(locale)) {
+                        continue;
+                    }
+                    Location.distanceBetween(latitude, longitude,
+                            entry.latitude, entry.longitude, distance);
+                    if (distance[0] <= bestDistance) {
+                        best = entry;
+                        bestDistance = distance[0];
+                    }
+                }
+            }
+        }
+
+        if (best == null) {
+            return null;
+        }
+        if (D) Log.d(TAG, "Using " + best.city + " (" + best.id + "), resolved "
+                + (int) bestDistance + "m away");
+        LocationResult result = new LocationResult();
+        result.id = best.id;
+        result.city = best.city;
+        return result;
+    }
+
+    /**
+     * Remember the result of resolving the given location
+     */
+    public synchronized void put(Location location, String locale, LocationResult result) {
+        if (result == null || result.id == null || result.city == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        // Drop expired entries, and the oldest ones beyond the size limit
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (now - entry.resolvedAt > MAX_AGE_MS || entry.resolvedAt > now) {
+                remove(i);
+            }
+        }
+        while (mEntries.size() >= MAX_ENTRIES) {
+            remove(0);
+        }
+
+        add(new Entry(location.getLatitude(), location.getLongitude(),
+                locale == null ? "" : locale, result.id, result.city, now));
+        save();
+    }
+
+    //===============================================================================================
+    // Grid index
+    //===============================================================================================
+    private static int getRow(double latitude) {
+        return (int) Math.floor(latitude / GRID_SIZE_DEGREES);
+    }
+
+    private static int getColumn(double longitude) {
+        return (int) Math.floor(longitude / GRID_SIZE_DEGREES);
+    }
+
+    private static long getCellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    private static long getCellKey(Entry entry) {
+        return getCellKey(getRow(entry.latitude), getColumn(entry.longitude));
+    }
+
+    /**
+     * Add the entry as the newest one
+     */
+    private void add(Entry entry) {
+        mEntries.add(entry);
+        long key = getCellKey(entry);
+        List<Entry> cell = mGrid.get(key);
+        if (cell == null) {
+            cell = new ArrayList<Entry>(2);
+            mGrid.put(key, cell);
+        }
+        cell.add(entry);
+    }
+
+    private void remove(int index) {
+        Entry entry = mEntries.remove(index);
+        long key = getCellKey(entry);
+        List<Entry> cell = mGrid.get(key);
+        if (cell != null) {
+            cell.remove(entry);
+            if (cell.isEmpty()) {
+                mGrid.remove(key);
+            }
+        }
+    }
+
+    //===============================================================================================
+    // Persistence
+    //===============================================================================================
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readUnsignedByte() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                add(new Entry(in.readDouble(), in.readDouble(), in.readUTF(),
+                        in.readUTF(), in.readUTF(), in.readLong()));
+            }
+            if (D) Log.d(TAG, "Loaded " + mEntries.size() + " cached locations");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read location cache file", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * mEntries.size() + 8);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(FILE_VERSION);
+            data.writeInt(mEntries.size());
+            for (Entry entry : mEntries) {
+                data.writeDouble(entry.latitude);
+                data.writeDouble(entry.longitude);
+                data.writeUTF(entry.locale);
+                data.writeUTF(entry.id);
+                data.writeUTF(entry.city);
+                data.writeLong(entry.resolvedAt);
+            }
+            data.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not encode location cache", e);
+            return;
+        }
+
+        // Write to a temporary file first so a crash can't leave a truncated file behind
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Could not replace location cache file");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write location cache file", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final double latitude;
+        final double longitude;
+        final String locale;
+        final String id;
+        final String city;
+        final long resolvedAt;
+
+        Entry(double latitude, double longitude, String locale, String id, String city,
+                long resolvedAt) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.locale = locale;
+            this.id = id;
+            this.city = city;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
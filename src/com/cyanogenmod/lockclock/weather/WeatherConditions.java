@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.cyanogenmod.lockclock.R;
+
+/**
+ * Lookup table from weather condition codes to the icon and name resources.
+ *
+ * The table is indexed by the Yahoo condition codes 0 - 47, which is what WeatherInfo stores.
+ * Providers using other codes translate them with a Mapping when creating the WeatherInfo.
+ * Resource ids don't depend on the configuration, so the table is only built once.
+ */
+public class WeatherConditions {
+    // Highest Yahoo condition code with its own resources
+    private static final int MAX_CODE = 47;
+
+    // Yahoo code for "not available"
+    public static final int CODE_NOT_AVAILABLE = 3200;
+
+    /**
+     * Translates the condition codes of a provider into Yahoo condition codes
+     */
+    public interface Mapping {
+        /**
+         * @return The Yahoo condition code, or CODE_NOT_AVAILABLE if there is no equivalent
+         */
+        int toConditionCode(int providerCode);
+    }
+
+    public static final Mapping YAHOO_MAPPING = new Mapping() {
+        @Override
+        public int toConditionCode(int providerCode) {
+            return providerCode;
+        }
+    };
+
+    private static int[] sIcons;
+    private static int[] sAlternateIcons;
+    private static int[] sNames;
+    private static int sNotAvailableName;
+
+    private WeatherConditions() {
+    }
+
+    private static synchronized void ensureLoaded(Context context) {
+        if (sIcons != null) {
+            return;
+        }
+
+        final Resources res = context.getResources();
+        final String packageName = context.getPackageName();
+        int[] icons = new int[MAX_CODE + 1];
+        int[] alternateIcons = new int[MAX_CODE + 1];
+        int[] names = new int[MAX_CODE + 1];
+
+        for (int code = 0; code <= MAX_CODE; code++) {
+            icons[code] = res.getIdentifier("weather_" + code, "drawable", packageName);
+            if (icons[code] == 0) {
+                icons[code] = R.drawable.weather_na;
+            }
+            alternateIcons[code] = res.getIdentifier("weather2_" + code, "drawable", packageName);
+            if (alternateIcons[code] == 0) {
+                alternateIcons[code] = R.drawable.weather2_na;
+            }
+            names[code] = res.getIdentifier("weather_" + code, "string", packageName);
+        }
+        sNotAvailableName = res.getIdentifier("weather_" + CODE_NOT_AVAILABLE, "string",
+                packageName);
+
+        sAlternateIcons = alternateIcons;
+        sNames = names;
+        sIcons = icons;
+    }
+
+    private static boolean hasEntry(int code) {
+        return code >= 0 && code <= MAX_CODE;
+    }
+
+    /**
+     * @return The drawable to overlay with the weather color
+     */
+    public static int getIcon(Context context, int code) {
+        ensureLoaded(context);
+        return hasEntry(code) ? sIcons[code] : R.drawable.weather_na;
+    }
+
+    /**
+     * @return The colored alternate drawable
+     */
+    public static int getAlternateIcon(Context context, int code) {
+        ensureLoaded(context);
+        return hasEntry(code) ? sAlternateIcons[code] : R.drawable.weather2_na;
+    }
+
+    /**
+     * @return The string resource naming the condition, or 0 if there is none
+     */
+    public static int getName(Context context, int code) {
+        ensureLoaded(context);
+        if (code == CODE_NOT_AVAILABLE) {
+            return sNotAvailableName;
+        }
+        return hasEntry(code) ? sNames[code] : 0;
+    }
+}
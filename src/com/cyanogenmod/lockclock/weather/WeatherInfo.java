@@ -17,13 +17,15 @@
 package com.cyanogenmod.lockclock.weather;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
 
 import com.cyanogenmod.lockclock.R;
 import com.cyanogenmod.lockclock.misc.Preferences;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Date;
 
@@ -71,20 +73,11 @@ public class WeatherInfo {
     }
 
     public int getConditionResource() {
-        final Resources res = mContext.getResources();
-        final int resId = res.getIdentifier("weather2_" + conditionCode, "drawable", mContext.getPackageName());
-        if (resId != 0) {
-            return resId;
-        }
-        return R.drawable.weather2_na;
+        return WeatherConditions.getAlternateIcon(mContext, conditionCode);
     }
 
     public Bitmap getConditionBitmap(int color) {
-        final Resources res = mContext.getResources();
-        int resId = res.getIdentifier("weather_" + conditionCode, "drawable", mContext.getPackageName());
-        if (resId == 0) {
-            resId = R.drawable.weather_na;
-        }
+        final int resId = WeatherConditions.getIcon(mContext, conditionCode);
         return WidgetUtils.getOverlaidBitmap(mContext, resId, color);
     }
 
@@ -97,14 +90,21 @@ public class WeatherInfo {
     }
 
     public String getCondition() {
-        final Resources res = mContext.getResources();
-        final int resId = res.getIdentifier("weather_" + conditionCode, "string", mContext.getPackageName());
+        final int resId = WeatherConditions.getName(mContext, conditionCode);
         if (resId != 0) {
-            return res.getString(resId);
+            return mContext.getString(resId);
         }
         return condition;
     }
 
+    int getConditionCode() {
+        return conditionCode;
+    }
+
+    float getTemperature() {
+        return temperature;
+    }
+
     public Date getTimestamp() {
         return new Date(timestamp);
     }
@@ -188,30 +188,73 @@ public class WeatherInfo {
         return builder.toString();
     }
 
-    public String toSerializedString() {
-        StringBuilder builder = new StringBuilder();
-        builder.append(id).append('|');
-        builder.append(city).append('|');
-        builder.append(forecastDate).append('|');
-        builder.append(condition).append('|');
-        builder.append(conditionCode).append('|');
-        builder.append(temperature).append('|');
-        builder.append(lowTemperature).append('|');
-        builder.append(highTemperature).append('|');
-        builder.append(tempUnit).append('|');
-        builder.append(humidity).append('|');
-        builder.append(wind).append('|');
-        builder.append(windDirection).append('|');
-        builder.append(speedUnit).append('|');
-        builder.append(timestamp);
-
-        if (aqiInfo != null) {
-            builder.append('|').append(aqiInfo);
+    /**
+     * Write the binary representation read by readFrom(). New fields must only ever be
+     * appended at the end, together with a bump of WeatherInfoStore.RECORD_VERSION.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        writeString(out, id);
+        writeString(out, city);
+        writeString(out, forecastDate);
+        writeString(out, condition);
+        out.writeInt(conditionCode);
+        out.writeFloat(temperature);
+        out.writeFloat(lowTemperature);
+        out.writeFloat(highTemperature);
+        writeString(out, tempUnit);
+        out.writeFloat(humidity);
+        out.writeFloat(wind);
+        out.writeInt(windDirection);
+        writeString(out, speedUnit);
+        out.writeLong(timestamp);
+        writeString(out, aqiInfo);
+    }
+
+    /**
+     * Read the binary representation written by writeTo() with the given record version
+     */
+    static WeatherInfo readFrom(Context context, DataInputStream in, int version)
+            throws IOException {
+        String id = readString(in);
+        String city = readString(in);
+        String forecastDate = readString(in);
+        String condition = readString(in);
+        int conditionCode = in.readInt();
+        float temperature = in.readFloat();
+        float low = in.readFloat();
+        float high = in.readFloat();
+        String tempUnit = readString(in);
+        float humidity = in.readFloat();
+        float wind = in.readFloat();
+        int windDirection = in.readInt();
+        String speedUnit = readString(in);
+        long timestamp = in.readLong();
+
+        WeatherInfo info = new WeatherInfo(context, id, city, forecastDate, condition,
+                conditionCode, temperature, low, high, tempUnit, humidity, wind,
+                windDirection, speedUnit, timestamp);
+        info.setAqiInfo(readString(in));
+
+        // Fields added by later record versions go here, guarded by a version check
+
+        return info;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
         }
+    }
 
-        return builder.toString();
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 
+    /**
+     * Parse the pipe separated format formerly stored in the preferences.
+     * Only used to migrate an existing cache to the WeatherInfoStore.
+     */
     public static WeatherInfo fromSerializedString(Context context, String input) {
         if (input == null) {
             return null;
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last weather update time and data in a small binary file of its own, so
+ * caching a weather update doesn't rewrite the whole preferences file.
+ *
+ * Record layout:
+ *   byte    record version
+ *   long    timestamp of the last update, 0 if an update is forced
+ *   boolean whether weather data follows
+ *   ...     the WeatherInfo fields, see WeatherInfo.writeTo()
+ *
+ * Later versions may only append fields. Readers ignore trailing data written by newer
+ * versions, and only read the fields present in the version found in the record.
+ */
+public class WeatherInfoStore {
+    private static final String TAG = "WeatherInfoStore";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String FILE_NAME = "weather_cache.bin";
+    private static final int RECORD_VERSION = 1;
+
+    // The raw record as last read or written, null if not loaded yet
+    private static byte[] sRecord;
+
+    private WeatherInfoStore() {
+    }
+
+    public static synchronized long getLastUpdateTimestamp(Context context) {
+        byte[] record = getRecord(context);
+        if (record.length == 0) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            in.readUnsignedByte();
+            return in.readLong();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cached weather update time", e);
+        }
+        return 0;
+    }
+
+    public static synchronized WeatherInfo getWeatherInfo(Context context) {
+        return decode(context, getRecord(context));
+    }
+
+    /**
+     * Store the update timestamp, and the data if it is not null
+     */
+    public static synchronized void set(Context context, long timestamp, WeatherInfo data) {
+        if (data == null) {
+            // Keep the existing data, only the update time changes
+            data = getWeatherInfo(context);
+        }
+        byte[] record = encode(timestamp, data);
+        if (record == null) {
+            return;
+        }
+        sRecord = record;
+        write(context, record);
+    }
+
+    private static byte[] getRecord(Context context) {
+        if (sRecord == null) {
+            File file = getFile(context);
+            if (file.exists()) {
+                sRecord = read(file);
+            } else {
+                sRecord = migrateFromPreferences(context);
+            }
+        }
+        return sRecord;
+    }
+
+    private static WeatherInfo decode(Context context, byte[] record) {
+        if (record.length == 0) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            int version = in.readUnsignedByte();
+            in.readLong();
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return WeatherInfo.readFrom(context, in, version);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not decode cached weather data", e);
+        }
+        return null;
+    }
+
+    private static byte[] encode(long timestamp, WeatherInfo data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_VERSION);
+            out.writeLong(timestamp);
+            out.writeBoolean(data != null);
+            if (data != null) {
+                data.writeTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not encode weather data", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static byte[] read(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] record = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < record.length) {
+                int count = in.read(record, offset, record.length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+            return record;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read weather cache file", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return new byte[0];
+    }
+
+    private static void write(Context context, byte[] record) {
+        // Write to a temporary file first so a crash can't leave a truncated record behind
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(record);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Could not replace weather cache file");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write weather cache file", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert the cache formerly kept in the preferences, and remove it from there
+     */
+    private static byte[] migrateFromPreferences(Context context) {
+        SharedPreferences prefs = Preferences.getPrefs(context);
+        if (!prefs.contains(Constants.WEATHER_LAST_UPDATE) && !prefs.contains(Constants.WEATHER_DATA)) {
+            return new byte[0];
+        }
+
+        long timestamp = prefs.getLong(Constants.WEATHER_LAST_UPDATE, 0);
+        WeatherInfo data = WeatherInfo.fromSerializedString(context,
+                prefs.getString(Constants.WEATHER_DATA, null));
+        if (D) Log.d(TAG, "Migrating cached weather data from preferences: " + data);
+
+        byte[] record = encode(timestamp, data);
+        if (record == null) {
+            return new byte[0];
+        }
+        write(context, record);
+        prefs.edit()
+                .remove(Constants.WEATHER_LAST_UPDATE)
+                .remove(Constants.WEATHER_DATA)
+                .apply();
+        return record;
+    }
+}
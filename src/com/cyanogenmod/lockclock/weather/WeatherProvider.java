@@ -20,7 +20,23 @@ import android.location.Location;
 
 import java.util.List;
 
+/**
+ * Source of weather data. Methods return null if there is no result for the request, and
+ * throw a ProviderException if the source could not be reached or gave an unusable answer.
+ */
 public interface WeatherProvider {
+    public class ProviderException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ProviderException(String message) {
+            super(message);
+        }
+
+        public ProviderException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
     public class LocationResult {
         public String id;
         public String city;
@@ -33,5 +49,10 @@ public interface WeatherProvider {
 
     WeatherInfo getWeatherInfo(String id, String localizedCityName);
 
+    /**
+     * Resolve a geographic location to the provider's location id and city name
+     */
+    LocationResult resolveLocation(Location location);
+
     WeatherInfo getWeatherInfo(Location location);
 };
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Weather provider that forwards each request to a set of registered backends, in priority
+ * order, until one of them answers. A backend that fails or misses its deadline a number of
+ * times in a row is skipped for a while (its circuit is open), after which a single request
+ * is let through to probe whether it recovered.
+ *
+ * Only a ProviderException or a missed deadline count as a failure. A backend that answers
+ * without a result, e.g. a location search without a match, is healthy; the request is
+ * still passed on to the next backend.
+ *
+ * All backends must accept the same location ids, which currently are Yahoo WOEIDs.
+ */
+public class WeatherProviderRegistry implements WeatherProvider {
+    private static final String TAG = "WeatherProviderRegistry";
+    private static final boolean D = Constants.DEBUG;
+
+    // Deadline of a single backend request, leaves room to fail over within the update deadline
+    private static final long DEFAULT_REQUEST_TIMEOUT_MS = 20 * 1000;
+
+    // Consecutive failures after which the circuit of a backend opens
+    private static final int FAILURE_THRESHOLD = 3;
+
+    // How long an open circuit stays open, doubled on each failed probe
+    private static final long MIN_OPEN_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long MAX_OPEN_INTERVAL_MS = 2 * 60 * 60 * 1000;
+
+    private static WeatherProviderRegistry sInstance;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Backend> mBackends = new ArrayList<Backend>();
+    private final long mRequestTimeout;
+
+    public WeatherProviderRegistry() {
+        this(DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    public WeatherProviderRegistry(long requestTimeout) {
+        mRequestTimeout = requestTimeout;
+    }
+
+    /**
+     * @return The registry with the built in backends
+     */
+    public static synchronized WeatherProviderRegistry get(Context context) {
+        if (sInstance == null) {
+            WeatherProviderRegistry registry = new WeatherProviderRegistry();
+            registry.register("yahoo", new YahooWeatherProvider(context.getApplicationContext()), 0);
+            sInstance = registry;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Add a backend. Backends with a lower priority value are asked first.
+     */
+    public synchronized void register(String name, WeatherProvider provider, int priority) {
+        Backend backend = new Backend(name, provider, priority);
+        int index = 0;
+        while (index < mBackends.size() && mBackends.get(index).priority <= priority) {
+            index++;
+        }
+        mBackends.add(index, backend);
+    }
+
+    public synchronized void unregister(String name) {
+        for (int i = 0; i < mBackends.size(); i++) {
+            if (mBackends.get(i).name.equals(name)) {
+                mBackends.remove(i);
+                return;
+            }
+        }
+    }
+
+    private synchronized List<Backend> getBackends() {
+        return new ArrayList<Backend>(mBackends);
+    }
+
+    //===============================================================================================
+    // WeatherProvider
+    //===============================================================================================
+    private interface Request<T> {
+        T run(WeatherProvider provider);
+    }
+
+    /**
+     * Run the request on the available backends in order and return the first result
+     *
+     * @return The result, or null if all backends failed
+     */
+    private <T> T execute(String what, final Request<T> request) {
+        boolean tried = false;
+
+        for (final Backend backend : getBackends()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            if (!backend.acquire(start)) {
+                continue;
+            }
+            tried = true;
+
+            Attempt<T> attempt = new Attempt<T>(backend, request);
+            Future<T> future = mExecutor.submit(attempt);
+
+            T result = null;
+            boolean failed = false;
+            try {
+                result = future.get(mRequestTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.w(TAG, backend.name + " did not answer " + what + " in time");
+                failed = true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, backend.name + " failed " + what, e.getCause());
+                failed = true;
+            } catch (InterruptedException e) {
+                attempt.cancel(future);
+                // The request didn't run to completion, that's no verdict on the backend
+                backend.release();
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            final long end = SystemClock.elapsedRealtime();
+            if (failed) {
+                attempt.cancel(future);
+                backend.onFailure(end - start, end);
+                if (D) Log.d(TAG, what + " failed on " + backend + ", trying next provider");
+                continue;
+            }
+
+            backend.onSuccess(end - start);
+            if (result != null) {
+                if (D) Log.d(TAG, what + " answered by " + backend);
+                return result;
+            }
+            if (D) Log.d(TAG, "No result for " + what + " from " + backend
+                    + ", trying next provider");
+        }
+
+        if (!tried) {
+            Log.w(TAG, "No weather provider available for " + what);
+        }
+        return null;
+    }
+
+    /**
+     * A request running on a single backend, which can be aborted along with the
+     * network request it is waiting for
+     */
+    private static class Attempt<T> implements Callable<T> {
+        private final Backend mBackend;
+        private final Request<T> mRequest;
+        private Thread mThread;
+        private boolean mCancelled;
+
+        Attempt(Backend backend, Request<T> request) {
+            mBackend = backend;
+            mRequest = request;
+        }
+
+        @Override
+        public T call() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return null;
+                }
+                mThread = Thread.currentThread();
+            }
+            try {
+                return mRequest.run(mBackend.provider);
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+            }
+        }
+
+        synchronized void cancel(Future<T> future) {
+            mCancelled = true;
+            future.cancel(true);
+            if (mThread != null) {
+                // Interrupting doesn't unblock a socket read, close the connection instead
+                HttpRetriever.abort(mThread);
+            }
+        }
+    }
+
+    @Override
+    public List<LocationResult> getLocations(final String input) {
+        return execute("location search", new Request<List<LocationResult>>() {
+            @Override
+            public List<LocationResult> run(WeatherProvider provider) {
+                return provider.getLocations(input);
+            }
+        });
+    }
+
+    @Override
+    public WeatherInfo getWeatherInfo(final String id, final String localizedCityName) {
+        return execute("weather request", new Request<WeatherInfo>() {
+            @Override
+            public WeatherInfo run(WeatherProvider provider) {
+                return provider.getWeatherInfo(id, localizedCityName);
+            }
+        });
+    }
+
+    @Override
+    public LocationResult resolveLocation(final Location location) {
+        return execute("location lookup", new Request<LocationResult>() {
+            @Override
+            public LocationResult run(WeatherProvider provider) {
+                return provider.resolveLocation(location);
+            }
+        });
+    }
+
+    @Override
+    public WeatherInfo getWeatherInfo(final Location location) {
+        return execute("weather request", new Request<WeatherInfo>() {
+            @Override
+            public WeatherInfo run(WeatherProvider provider) {
+                return provider.getWeatherInfo(location);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WeatherProviderRegistry " + mBackends;
+    }
+
+    //===============================================================================================
+    // Backend health
+    //===============================================================================================
+    private static class Backend {
+        final String name;
+        final WeatherProvider provider;
+        final int priority;
+
+        // Circuit breaker state
+        private int mConsecutiveFailures;
+        private long mOpenInterval;
+        private long mOpenUntil;
+        private boolean mProbing;
+
+        // Metrics
+        private int mRequests;
+        private int mSuccesses;
+        private long mTotalLatency;
+
+        Backend(String name, WeatherProvider provider, int priority) {
+            this.name = name;
+            this.provider = provider;
+            this.priority = priority;
+        }
+
+        /**
+         * Whether a request may be sent. Once an open circuit expires, a single probe
+         * request is let through; the others are held back until it has completed.
+         * A granted request must end in onSuccess(), onFailure() or release().
+         */
+        synchronized boolean acquire(long now) {
+            if (mConsecutiveFailures < FAILURE_THRESHOLD) {
+                return true;
+            }
+            if (mProbing || now < mOpenUntil) {
+                return false;
+            }
+            mProbing = true;
+            return true;
+        }
+
+        synchronized void release() {
+            mProbing = false;
+        }
+
+        synchronized void onSuccess(long latency) {
+            mProbing = false;
+            mRequests++;
+            mSuccesses++;
+            mTotalLatency += latency;
+            mConsecutiveFailures = 0;
+            mOpenInterval = 0;
+        }
+
+        synchronized void onFailure(long latency, long now) {
+            mProbing = false;
+            mRequests++;
+            mTotalLatency += latency;
+            mConsecutiveFailures++;
+            if (mConsecutiveFailures >= FAILURE_THRESHOLD) {
+                mOpenInterval = mOpenInterval == 0
+                        ? MIN_OPEN_INTERVAL_MS
+                        : Math.min(mOpenInterval * 2, MAX_OPEN_INTERVAL_MS);
+                mOpenUntil = now + mOpenInterval;
+                Log.w(TAG, "Disabling weather provider " + name + " for "
+                        + (mOpenInterval / 1000) + "s");
+            }
+        }
+
+        synchronized float getSuccessRate() {
+            return mRequests == 0 ? 1f : (float) mSuccesses / mRequests;
+        }
+
+        synchronized long getAverageLatency() {
+            return mRequests == 0 ? 0 : mTotalLatency / mRequests;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Backend [name=").append(name);
+            builder.append(", priority=").append(priority);
+            builder.append(", requests=").append(mRequests);
+            builder.append(", successRate=").append(getSuccessRate());
+            builder.append(", averageLatency=").append(getAverageLatency());
+            builder.append(", consecutiveFailures=").append(mConsecutiveFailures);
+            builder.append("]");
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+import java.util.Random;
+
+/**
+ * Decides when the next weather update is due.
+ *
+ * The refresh interval setting is the base interval. After STABLE_UPDATES_TO_STRETCH updates
+ * in a row without a noticeable change the interval is doubled, after an update with a changed
+ * condition or a temperature change of at least VOLATILE_TEMPERATURE_DELTA degrees it is halved
+ * (but not below MIN_INTERVAL_MS). Failed updates are retried with an exponential backoff,
+ * randomized so that devices don't retry in lock step.
+ *
+ * The state is kept in a preferences file of its own, so it doesn't touch the settings.
+ */
+public class WeatherRefreshPolicy {
+    private static final String TAG = "WeatherRefreshPolicy";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String PREFS_NAME = "weather_refresh";
+    private static final String KEY_STABLE_UPDATES = "stable_updates";
+    private static final String KEY_VOLATILE = "volatile";
+    private static final String KEY_FAILURES = "failures";
+
+    private static final int STABLE_UPDATES_TO_STRETCH = 2;
+    private static final float VOLATILE_TEMPERATURE_DELTA = 3f;
+    private static final long MIN_INTERVAL_MS = 15 * 60 * 1000;
+
+    private static final long MIN_BACKOFF_MS = 5 * 60 * 1000;
+    private static final long MAX_BACKOFF_MS = 4 * 60 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    private WeatherRefreshPolicy() {
+    }
+
+    private static SharedPreferences getState(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The time between successful updates, or 0 if updates are manual
+     */
+    public static long getRefreshInterval(Context context) {
+        long interval = Preferences.weatherRefreshIntervalInMs(context);
+        if (interval == 0) {
+            return 0;
+        }
+
+        SharedPreferences state = getState(context);
+        if (state.getBoolean(KEY_VOLATILE, false)) {
+            return Math.max(Math.min(interval, MIN_INTERVAL_MS), interval / 2);
+        }
+        if (state.getInt(KEY_STABLE_UPDATES, 0) >= STABLE_UPDATES_TO_STRETCH) {
+            return interval * 2;
+        }
+        return interval;
+    }
+
+    /**
+     * Record a successful update
+     *
+     * @return The time until the next update, or 0 if updates are manual
+     */
+    public static long onUpdateSucceeded(Context context, WeatherInfo previous,
+            WeatherInfo current) {
+        SharedPreferences state = getState(context);
+        boolean changed = hasChanged(previous, current);
+        int stableUpdates = changed ? 0 : state.getInt(KEY_STABLE_UPDATES, 0) + 1;
+
+        state.edit()
+                .putInt(KEY_STABLE_UPDATES, stableUpdates)
+                .putBoolean(KEY_VOLATILE, changed)
+                .putInt(KEY_FAILURES, 0)
+                .apply();
+
+        long interval = getRefreshInterval(context);
+        if (D) Log.d(TAG, "Weather " + (changed ? "changed" : "stable for " + stableUpdates
+                + " updates") + ", next update in " + (interval / 60000) + " minutes");
+        return interval;
+    }
+
+    /**
+     * Record a failed update
+     *
+     * @return The time until the update should be retried
+     */
+    public static long onUpdateFailed(Context context) {
+        SharedPreferences state = getState(context);
+        int failures = state.getInt(KEY_FAILURES, 0);
+        state.edit().putInt(KEY_FAILURES, failures + 1).apply();
+
+        long backoff = MIN_BACKOFF_MS << Math.min(failures, 10);
+        if (backoff > MAX_BACKOFF_MS) {
+            backoff = MAX_BACKOFF_MS;
+        }
+        // Anywhere between half and all of the backoff
+        long delay = backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+        if (D) Log.d(TAG, "Weather update failed " + (failures + 1) + " times, retrying in "
+                + (delay / 1000) + "s");
+        return delay;
+    }
+
+    private static boolean hasChanged(WeatherInfo previous, WeatherInfo current) {
+        if (previous == null || current == null) {
+            return true;
+        }
+        if (previous.getConditionCode() != current.getConditionCode()
+                || !TextUtils.equals(previous.getId(), current.getId())) {
+            return true;
+        }
+        float delta = Math.abs(previous.getTemperature() - current.getTemperature());
+        // NaN compares false, a missing temperature counts as a change
+        return !(delta < VOLATILE_TEMPERATURE_DELTA);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide holder of the current weather data. The data is read from the
+ * WeatherInfoStore once on first use and kept in memory afterwards. Updates are
+ * reported to the registered listeners first and written to the store afterwards on
+ * a background thread, so showing new data doesn't wait for the disk. Writes that
+ * queue up behind a slow one are coalesced into a single write of the latest data.
+ *
+ * The WeatherInfo instance handed out is shared, callers must not modify it.
+ */
+public class WeatherRepository {
+    private static final String TAG = "WeatherRepository";
+    private static final boolean D = Constants.DEBUG;
+
+    public interface OnWeatherChangedListener {
+        /**
+         * Called on the thread that stored the update, with the new weather data
+         */
+        void onWeatherChanged(WeatherInfo info);
+    }
+
+    private static final CopyOnWriteArrayList<OnWeatherChangedListener> sListeners =
+            new CopyOnWriteArrayList<OnWeatherChangedListener>();
+
+    private static boolean sLoaded;
+    private static WeatherInfo sInfo;
+    private static long sLastUpdate;
+
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+    private static boolean sWritePending;
+
+    private WeatherRepository() {
+    }
+
+    public static void addListener(OnWeatherChangedListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(OnWeatherChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * @return The current weather data, or null if there is none
+     */
+    public static synchronized WeatherInfo getWeatherInfo(Context context) {
+        loadIfNeeded(context);
+        return sInfo;
+    }
+
+    /**
+     * @return The time of the last successful update, or 0 if an update is forced
+     */
+    public static synchronized long getLastUpdateTimestamp(Context context) {
+        loadIfNeeded(context);
+        return sLastUpdate;
+    }
+
+    /**
+     * Store a new update timestamp, and new weather data if it is not null.
+     * The listeners are only notified if the weather data was replaced.
+     */
+    public static void update(Context context, long timestamp, WeatherInfo info) {
+        synchronized (WeatherRepository.class) {
+            loadIfNeeded(context);
+            sLastUpdate = timestamp;
+            if (info != null) {
+                sInfo = info;
+            }
+        }
+
+        if (info != null) {
+            if (D) Log.d(TAG, "Weather data updated, notifying " + sListeners.size() + " listeners");
+            for (OnWeatherChangedListener listener : sListeners) {
+                listener.onWeatherChanged(info);
+            }
+        }
+
+        schedulePersist(context.getApplicationContext());
+    }
+
+    private static synchronized void schedulePersist(final Context context) {
+        if (sWritePending) {
+            // The queued write picks up the latest data
+            return;
+        }
+        sWritePending = true;
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long timestamp;
+                WeatherInfo info;
+                synchronized (WeatherRepository.class) {
+                    sWritePending = false;
+                    timestamp = sLastUpdate;
+                    info = sInfo;
+                }
+                if (D) Log.d(TAG, "Persisting weather data");
+                WeatherInfoStore.set(context, timestamp, info);
+            }
+        });
+    }
+
+    private static void loadIfNeeded(Context context) {
+        if (!sLoaded) {
+            if (D) Log.d(TAG, "Loading cached weather data");
+            sInfo = WeatherInfoStore.getWeatherInfo(context);
+            sLastUpdate = WeatherInfoStore.getLastUpdateTimestamp(context);
+            sLoaded = true;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.cyanogenmod.lockclock.weather;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
@@ -36,11 +35,19 @@ import android.os.PowerManager.WakeLock;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.cyanogenmod.lockclock.ClockWidgetProvider;
+import com.cyanogenmod.lockclock.WakeupPlanner;
 import com.cyanogenmod.lockclock.misc.Constants;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
 
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class WeatherUpdateService extends Service {
     private static final String TAG = "WeatherUpdateService";
@@ -48,6 +55,15 @@ public class WeatherUpdateService extends Service {
 
     public static final String ACTION_FORCE_UPDATE = "com.cyanogenmod.lockclock.action.FORCE_WEATHER_UPDATE";
 
+    // Deadlines for the concurrent fetches, counted from the start of the fetch
+    private static final long WEATHER_DEADLINE_MS = 45 * 1000;
+    private static final long AQI_DEADLINE_MS = 10 * 1000;
+
+    // How long a scheduled update may wait for other alarms
+    private static final long UPDATE_TOLERANCE_MS = 15 * 60 * 1000;
+
+    private static final ExecutorService sFetchExecutor = Executors.newCachedThreadPool();
+
     private WeatherUpdateTask mTask;
 
     private static final Criteria sLocationCriteria;
@@ -110,7 +126,7 @@ public class WeatherUpdateService extends Service {
             return false;
         }
 
-        long interval = Preferences.weatherRefreshIntervalInMs(this);
+        long interval = WeatherRefreshPolicy.getRefreshInterval(this);
         if (interval == 0 && !force) {
             if (D) Log.v(TAG, "Interval set to manual and update not forced, skip update");
             return false;
@@ -156,7 +172,7 @@ public class WeatherUpdateService extends Service {
 
         @Override
         protected WeatherInfo doInBackground(Void... params) {
-            WeatherProvider provider = new YahooWeatherProvider(mContext);
+            WeatherProvider provider = WeatherProviderRegistry.get(mContext);
             String customLocationId = null, customLocationName = null;
 
             if (Preferences.useCustomWeatherLocation(mContext)) {
@@ -165,23 +181,29 @@ public class WeatherUpdateService extends Service {
             }
 
             if (customLocationId != null) {
-                WeatherInfo info =  provider.getWeatherInfo(customLocationId, customLocationName);
-                addAqiInfo(info);
-                return info;
+                return fetchWeatherAndAqi(provider, customLocationId, customLocationName);
             }
 
             Location location = getCurrentLocation();
             if (location != null) {
-                WeatherInfo info = provider.getWeatherInfo(location);
-                if (info != null) {
-                    addAqiInfo(info);
-                    return info;
+                LocationResult resolved = provider.resolveLocation(location);
+                if (resolved != null) {
+                    WeatherInfo info = fetchWeatherAndAqi(provider, resolved.id, resolved.city);
+                    if (info != null) {
+                        // cache the result for potential reuse
+                        // (the placefinder service API is rate limited)
+                        Preferences.setCachedLocationId(mContext, resolved.id);
+                        return info;
+                    }
                 }
             }
+            if (isCancelled()) {
+                return null;
+            }
             // work with cached location from last request for now
             WeatherInfo cachedInfo = Preferences.getCachedWeatherInfo(mContext);
             if (cachedInfo != null) {
-                return provider.getWeatherInfo(cachedInfo.getId(), cachedInfo.getCity());
+                return fetchWeatherAndAqi(provider, cachedInfo.getId(), cachedInfo.getCity());
             }
             // If lastKnownLocation is not present because none of the apps in the
             // device has requested the current location to the system yet, then try to
@@ -198,6 +220,68 @@ public class WeatherUpdateService extends Service {
             return null;
         }
 
+        /**
+         * Fetch the forecast and the AQI info concurrently and merge them. The AQI source
+         * only gets a short deadline; if it misses it, the cached AQI info is used instead.
+         */
+        private WeatherInfo fetchWeatherAndAqi(final WeatherProvider provider,
+                final String id, final String city) {
+            final long start = System.currentTimeMillis();
+            Fetch<String> aqiFetch = null;
+            if (city != null && getAqiScreenName(city) != null) {
+                aqiFetch = new Fetch<String>(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return fetchAqiInfo(city);
+                    }
+                });
+            }
+            Fetch<WeatherInfo> weatherFetch = new Fetch<WeatherInfo>(new Callable<WeatherInfo>() {
+                @Override
+                public WeatherInfo call() {
+                    return provider.getWeatherInfo(id, city);
+                }
+            });
+
+            WeatherInfo info = getResult(weatherFetch, start + WEATHER_DEADLINE_MS);
+            if (info == null) {
+                if (aqiFetch != null) {
+                    aqiFetch.cancel();
+                }
+                return null;
+            }
+
+            if (aqiFetch == null) {
+                // The city name wasn't known up front, the AQI request has to wait for the forecast
+                String cityName = info.getCity();
+                if (TextUtils.isEmpty(cityName) || getAqiScreenName(cityName) == null) {
+                    if (D) Log.d(TAG, "AQI info is not supported for " + cityName);
+                    return info;
+                }
+                addAqiInfo(info, fetchAqiInfo(cityName));
+            } else {
+                addAqiInfo(info, getResult(aqiFetch, start + AQI_DEADLINE_MS));
+            }
+            if (D) Log.d(TAG, "Weather fetched in " + (System.currentTimeMillis() - start) + "ms");
+            return info;
+        }
+
+        private <T> T getResult(Fetch<T> fetch, long deadline) {
+            long timeout = Math.max(0, deadline - System.currentTimeMillis());
+            try {
+                return fetch.future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Fetch did not complete within its deadline, giving up");
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Fetch failed", e.getCause());
+            } catch (InterruptedException e) {
+                if (D) Log.d(TAG, "Interrupted while waiting for fetch");
+                Thread.currentThread().interrupt();
+            }
+            fetch.cancel();
+            return null;
+        }
+
         @Override
         protected void onPostExecute(WeatherInfo result) {
             finish(result);
@@ -209,22 +293,24 @@ public class WeatherUpdateService extends Service {
         }
 
         private void finish(WeatherInfo result) {
+            if (D) Log.d(TAG, "Provider state: " + WeatherProviderRegistry.get(mContext));
             if (result != null) {
                 if (D) Log.d(TAG, "Weather update received, caching data and updating widget");
                 long now = System.currentTimeMillis();
-                Preferences.setCachedWeatherInfo(mContext, now, result);
-                scheduleUpdate(mContext, Preferences.weatherRefreshIntervalInMs(mContext), false);
-
-                Intent updateIntent = new Intent(mContext, ClockWidgetProvider.class);
-                sendBroadcast(updateIntent);
+                WeatherInfo previous = WeatherRepository.getWeatherInfo(mContext);
+                // The repository listeners take care of refreshing the widgets
+                WeatherRepository.update(mContext, now, result);
+                long interval = WeatherRefreshPolicy.onUpdateSucceeded(mContext, previous, result);
+                if (interval > 0) {
+                    scheduleUpdate(mContext, interval, false, false);
+                }
             } else if (isCancelled()) {
                 // cancelled, likely due to lost network - we'll get restarted
                 // when network comes back
             } else {
-                // failure, schedule next download in 30 minutes
-                if (D) Log.d(TAG, "Weather refresh failed, scheduling update in 30 minutes");
-                long interval = 30 * 60 * 1000;
-                scheduleUpdate(mContext, interval, false);
+                // failure, retry with a growing delay
+                long delay = WeatherRefreshPolicy.onUpdateFailed(mContext);
+                scheduleUpdate(mContext, delay, false, false);
             }
 
             if (D) Log.d(TAG, "RELEASING WAKELOCK");
@@ -233,6 +319,48 @@ public class WeatherUpdateService extends Service {
         }
     }
 
+    /**
+     * A fetch running on the fetch executor, which can be dropped along with the network
+     * request it is waiting for
+     */
+    private static class Fetch<T> implements Callable<T> {
+        final Future<T> future;
+        private final Callable<T> mCallable;
+        private Thread mThread;
+        private boolean mCancelled;
+
+        Fetch(Callable<T> callable) {
+            mCallable = callable;
+            future = sFetchExecutor.submit(this);
+        }
+
+        @Override
+        public T call() throws Exception {
+            synchronized (this) {
+                if (mCancelled) {
+                    return null;
+                }
+                mThread = Thread.currentThread();
+            }
+            try {
+                return mCallable.call();
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            future.cancel(true);
+            if (mThread != null) {
+                // Interrupting doesn't unblock a socket read, close the connection instead
+                HttpRetriever.abort(mThread);
+            }
+        }
+    }
+
     private static class WeatherLocationListener implements LocationListener {
         private Context mContext;
         private static WeatherLocationListener sInstance = null;
@@ -272,7 +400,7 @@ public class WeatherUpdateService extends Service {
             // Now, we have a location to use. Schedule a weather update right now.
             if (D) Log.d(TAG, "The location has changed, schedule an update ");
             synchronized (WeatherLocationListener.class) {
-                WeatherUpdateService.scheduleUpdate(mContext, 0, true);
+                WeatherUpdateService.scheduleUpdate(mContext, 0, true, true);
                 sInstance = null;
             }
         }
@@ -293,21 +421,31 @@ public class WeatherUpdateService extends Service {
         }
     }
 
-    private static void scheduleUpdate(Context context, long timeFromNow, boolean force) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    /**
+     * Schedule an update. Updates that aren't urgent don't wake the device, they run as
+     * soon as the device is awake anyway.
+     */
+    private static void scheduleUpdate(Context context, long timeFromNow, boolean force,
+            boolean urgent) {
         long due = System.currentTimeMillis() + timeFromNow;
 
-        if (D) Log.d(TAG, "Scheduling next update at " + new Date(due));
-        am.set(AlarmManager.RTC_WAKEUP, due, getUpdateIntent(context, force));
+        if (D) Log.d(TAG, "Scheduling next " + (urgent ? "urgent " : "") + "update at "
+                + new Date(due));
+        WakeupPlanner.schedule(context, WakeupPlanner.JOB_WEATHER, due,
+                urgent ? 0 : UPDATE_TOLERANCE_MS, urgent, force ? 1 : 0);
     }
 
     public static void scheduleNextUpdate(Context context) {
         long lastUpdate = Preferences.lastWeatherUpdateTimestamp(context);
         if (lastUpdate == 0) {
-            scheduleUpdate(context, 0, false);
+            // Nothing to show yet
+            scheduleUpdate(context, 0, false, true);
         } else {
-            long interval = Preferences.weatherRefreshIntervalInMs(context);
-            scheduleUpdate(context, lastUpdate + interval - System.currentTimeMillis(), false);
+            long interval = WeatherRefreshPolicy.getRefreshInterval(context);
+            if (interval > 0) {
+                scheduleUpdate(context, lastUpdate + interval - System.currentTimeMillis(),
+                        false, false);
+            }
         }
     }
 
@@ -319,47 +457,57 @@ public class WeatherUpdateService extends Service {
         return PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
+    /**
+     * Start an update right away, if it's due or forced
+     */
+    public static void startUpdate(Context context, boolean force) {
+        Intent i = new Intent(context, WeatherUpdateService.class);
+        if (force) {
+            i.setAction(ACTION_FORCE_UPDATE);
+        }
+        context.startService(i);
+    }
+
     public static void cancelUpdates(Context context) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getUpdateIntent(context, true));
-        am.cancel(getUpdateIntent(context, false));
+        WakeupPlanner.cancel(context, WakeupPlanner.JOB_WEATHER);
     }
 
     private static final String[] SUPPORTED_AQI_LOCATIONS = new String[] {"shanghai", "beijing", "chengdu", "guangzhou"};
     private static final String[] TWITTER_SCREEN_NAMES = new String[] {"CGShanghaiAir", "BeijingAir", "CGChengduAir", "Guangzhou_Air"};
     private static final String TWITTER_PROXY_URL = "http://kurtchen.com/lab/aqi/?user=";
-    private void addAqiInfo(WeatherInfo info) {
-        if (info == null) {
-            Log.e(TAG, "addAqiInfo() -  info is null, skipping");
-            return;
-        }
-
-        String cityName = info.getCity();
-        if (TextUtils.isEmpty(cityName)) {
-            Log.e(TAG, "addAqiInfo() - empty city:" + cityName);
-            return;
-        }
 
-        String twitter = null;
+    private static String getAqiScreenName(String cityName) {
         for (int i = 0; i < SUPPORTED_AQI_LOCATIONS.length; i++) {
             if (SUPPORTED_AQI_LOCATIONS[i].equalsIgnoreCase(cityName)) {
-                twitter = TWITTER_SCREEN_NAMES[i];
-                break;
+                return TWITTER_SCREEN_NAMES[i];
             }
         }
+        return null;
+    }
 
+    /**
+     * @return The parsed AQI info text for the given city, or null if not available
+     */
+    private static String fetchAqiInfo(String cityName) {
+        String twitter = getAqiScreenName(cityName);
         if (twitter == null) {
             Log.w(TAG, cityName + " is not supported currently");
-            return;
+            return null;
         }
 
         String aqiInfo = HttpRetriever.retrieve(TWITTER_PROXY_URL + twitter);
-        if (D) Log.d(TAG, "addAqiInfo() - aqiInfo=" + aqiInfo);
+        if (D) Log.d(TAG, "fetchAqiInfo() - aqiInfo=" + aqiInfo);
 
-        String aqiInfoText = WeatherInfo.parseAqiInfo(aqiInfo);
+        return WeatherInfo.parseAqiInfo(aqiInfo);
+    }
+
+    private void addAqiInfo(WeatherInfo info, String aqiInfoText) {
         if (TextUtils.isEmpty(aqiInfoText)) {
             // get from cache
             WeatherInfo cachedInfo = Preferences.getCachedWeatherInfo(this);
+            if (cachedInfo == null) {
+                return;
+            }
             aqiInfoText = cachedInfo.getAqiInfo();
         }
         info.setAqiInfo(aqiInfoText);
@@ -20,27 +20,22 @@ import android.content.Context;
 import android.location.Location;
 import android.net.Uri;
 import android.util.Log;
+import android.util.Xml;
 
 import com.cyanogenmod.lockclock.misc.Preferences;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 public class YahooWeatherProvider implements WeatherProvider {
     private static final String TAG = "YahooWeatherProvider";
 
@@ -61,6 +56,7 @@ public class YahooWeatherProvider implements WeatherProvider {
     };
 
     private Context mContext;
+    private final WeatherStreamParser mWeatherParser = new WeatherStreamParser();
 
     public YahooWeatherProvider(Context context) {
         mContext = context;
@@ -93,50 +89,78 @@ public class YahooWeatherProvider implements WeatherProvider {
             }
             return results;
         } catch (JSONException e) {
-            Log.e(TAG, "Received malformed places data", e);
+            throw new ProviderException("Received malformed places data", e);
         }
-        return null;
     }
 
     public WeatherInfo getWeatherInfo(String id, String localizedCityName) {
         String unit = Preferences.useMetricUnits(mContext) ? "c" : "f";
         String url = String.format(URL_WEATHER, id, unit);
-        String response = HttpRetriever.retrieve(url);
-
-        if (response == null) {
-            return null;
+        WeatherHandler handler = HttpRetriever.retrieve(url, mWeatherParser);
+        if (handler == null) {
+            throw new ProviderException("Could not retrieve weather data");
+        }
+        if (!handler.isComplete()) {
+            // Cut off or missing required elements
+            throw new ProviderException("Received incomplete weather data");
         }
 
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        try {
-            SAXParser parser = factory.newSAXParser();
-            StringReader reader = new StringReader(response);
+        WeatherInfo w = new WeatherInfo(mContext, id,
+                localizedCityName != null ? localizedCityName : handler.city, null,
+                handler.condition, handler.conditionCode, handler.temperature,
+                handler.forecasts.get(0).low, handler.forecasts.get(0).high,
+                handler.temperatureUnit, handler.humidity, handler.windSpeed,
+                handler.windDirection, handler.speedUnit,
+                System.currentTimeMillis());
+        Log.d(TAG, "Weather updated: " + w);
+        return w;
+    }
+
+    /**
+     * Pulls the weather data out of the forecast RSS while it is being downloaded.
+     * The XML parser is kept and reset for every document.
+     */
+    private static class WeatherStreamParser implements HttpRetriever.StreamParser<WeatherHandler> {
+        private XmlPullParser mParser;
+
+        @Override
+        public synchronized WeatherHandler parse(InputStream in, String charset) throws IOException {
             WeatherHandler handler = new WeatherHandler();
-            parser.parse(new InputSource(reader), handler);
-
-            if (handler.isComplete()) {
-                WeatherInfo w = new WeatherInfo(mContext, id,
-                        localizedCityName != null ? localizedCityName : handler.city, null,
-                        handler.condition, handler.conditionCode, handler.temperature,
-                        handler.forecasts.get(0).low, handler.forecasts.get(0).high,
-                        handler.temperatureUnit, handler.humidity, handler.windSpeed,
-                        handler.windDirection, handler.speedUnit,
-                        System.currentTimeMillis());
-                Log.d(TAG, "Weather updated: " + w);
-                return w;
+            try {
+                if (mParser == null) {
+                    mParser = Xml.newPullParser();
+                }
+                XmlPullParser parser = mParser;
+                parser.setInput(in, charset);
+
+                int eventType = parser.getEventType();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    if (eventType == XmlPullParser.START_TAG) {
+                        handler.startElement(parser);
+                        if (handler.isComplete()) {
+                            // Everything we need has been read, skip the rest of the document
+                            break;
+                        }
+                    }
+                    eventType = parser.next();
+                }
+            } catch (XmlPullParserException e) {
+                throw new ProviderException("Could not parse weather XML", e);
+            } finally {
+                if (mParser != null) {
+                    // Don't hold on to the stream
+                    try {
+                        mParser.setInput(null);
+                    } catch (XmlPullParserException e) {
+                        mParser = null;
+                    }
+                }
             }
-        } catch (ParserConfigurationException e) {
-            Log.e(TAG, "Could not create XML parser", e);
-        } catch (SAXException e) {
-            Log.e(TAG, "Could not parse weather XML", e);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not parse weather XML", e);
+            return handler;
         }
-
-        return null;
     }
 
-    private static class WeatherHandler extends DefaultHandler {
+    private static class WeatherHandler {
         String city;
         String temperatureUnit, speedUnit;
         int windDirection, conditionCode;
@@ -150,29 +174,28 @@ public class YahooWeatherProvider implements WeatherProvider {
             String condition;
         }
 
-        @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes)
-                throws SAXException {
+        public void startElement(XmlPullParser parser) {
+            String qName = parser.getName();
             if (qName.equals("yweather:location")) {
-                city = attributes.getValue("city");
+                city = parser.getAttributeValue(null, "city");
             } else if (qName.equals("yweather:units")) {
-                temperatureUnit = attributes.getValue("temperature");
-                speedUnit = attributes.getValue("speed");
+                temperatureUnit = parser.getAttributeValue(null, "temperature");
+                speedUnit = parser.getAttributeValue(null, "speed");
             } else if (qName.equals("yweather:wind")) {
-                windDirection = (int) stringToFloat(attributes.getValue("direction"), -1);
-                windSpeed = stringToFloat(attributes.getValue("speed"), -1);
+                windDirection = (int) stringToFloat(parser.getAttributeValue(null, "direction"), -1);
+                windSpeed = stringToFloat(parser.getAttributeValue(null, "speed"), -1);
             } else if (qName.equals("yweather:atmosphere")) {
-                humidity = stringToFloat(attributes.getValue("humidity"), -1);
+                humidity = stringToFloat(parser.getAttributeValue(null, "humidity"), -1);
             } else if (qName.equals("yweather:condition")) {
-                condition = attributes.getValue("text");
-                conditionCode = (int) stringToFloat(attributes.getValue("code"), -1);
-                temperature = stringToFloat(attributes.getValue("temp"), Float.NaN);
+                condition = parser.getAttributeValue(null, "text");
+                conditionCode = parseConditionCode(parser.getAttributeValue(null, "code"));
+                temperature = stringToFloat(parser.getAttributeValue(null, "temp"), Float.NaN);
             } else if (qName.equals("yweather:forecast")) {
                 DayForecast day = new DayForecast();
-                day.low = stringToFloat(attributes.getValue("low"), Float.NaN);
-                day.high = stringToFloat(attributes.getValue("high"), Float.NaN);
-                day.condition = attributes.getValue("text");
-                day.conditionCode = (int) stringToFloat(attributes.getValue("code"), -1);
+                day.low = stringToFloat(parser.getAttributeValue(null, "low"), Float.NaN);
+                day.high = stringToFloat(parser.getAttributeValue(null, "high"), Float.NaN);
+                day.condition = parser.getAttributeValue(null, "text");
+                day.conditionCode = parseConditionCode(parser.getAttributeValue(null, "code"));
                 if (!Float.isNaN(day.low) && !Float.isNaN(day.high) && day.conditionCode >= 0) {
                     forecasts.add(day);
                 }
@@ -182,6 +205,10 @@ public class YahooWeatherProvider implements WeatherProvider {
             return temperatureUnit != null && speedUnit != null && conditionCode >= 0
                     && !Float.isNaN(temperature) && !forecasts.isEmpty();
         }
+        private int parseConditionCode(String value) {
+            int code = (int) stringToFloat(value, -1);
+            return code >= 0 ? WeatherConditions.YAHOO_MAPPING.toConditionCode(code) : code;
+        }
         private float stringToFloat(String value, float defaultValue) {
             try {
                 if (value != null) {
@@ -194,8 +221,17 @@ public class YahooWeatherProvider implements WeatherProvider {
         }
     }
 
-    public WeatherInfo getWeatherInfo(Location location) {
-        String locale = mContext.getResources().getConfiguration().locale.getCountry();
+    public LocationResult resolveLocation(Location location) {
+        Locale systemLocale = mContext.getResources().getConfiguration().locale;
+        String locale = systemLocale.getCountry();
+        // The city names are localized, cache them per locale and not just per country
+        String cacheKey = systemLocale.toString();
+        LocationCache cache = LocationCache.get(mContext);
+        LocationResult cached = cache.lookup(location, cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
         String params = String.format(Locale.US, "\"%f %f\" and lang=\"%s\"",
                 location.getLatitude(), location.getLongitude(), locale);
         String url = URL_PLACEFINDER + Uri.encode(params);
@@ -206,23 +242,32 @@ public class YahooWeatherProvider implements WeatherProvider {
 
         try {
             JSONObject result = results.getJSONObject("Result");
-            String woeid = result.getString("woeid");
-            String city = result.getString("city");
-
-            Log.d(TAG, "Resolved location " + location + " to " + city + " (" + woeid + ")");
-
-            WeatherInfo info = getWeatherInfo(woeid, city);
-            if (info != null) {
-                // cache the result for potential reuse
-                // (the placefinder service API is rate limited)
-                Preferences.setCachedLocationId(mContext, woeid);
-                return info;
-            }
+            LocationResult resolved = new LocationResult();
+            resolved.id = result.getString("woeid");
+            resolved.city = result.getString("city");
+
+            Log.d(TAG, "Resolved location " + location + " to " + resolved.city
+                    + " (" + resolved.id + ")");
+            cache.put(location, cacheKey, resolved);
+            return resolved;
         } catch (JSONException e) {
-            Log.e(TAG, "Received malformed placefinder data", e);
+            throw new ProviderException("Received malformed placefinder data", e);
+        }
+    }
+
+    public WeatherInfo getWeatherInfo(Location location) {
+        LocationResult resolved = resolveLocation(location);
+        if (resolved == null) {
+            return null;
         }
 
-        return null;
+        WeatherInfo info = getWeatherInfo(resolved.id, resolved.city);
+        if (info != null) {
+            // cache the result for potential reuse
+            // (the placefinder service API is rate limited)
+            Preferences.setCachedLocationId(mContext, resolved.id);
+        }
+        return info;
     }
 
     private LocationResult parsePlace(JSONObject place) throws JSONException {
@@ -250,10 +295,13 @@ public class YahooWeatherProvider implements WeatherProvider {
         return result;
     }
 
+    /**
+     * @return The results of the query, or null if there are none
+     */
     private JSONObject fetchResults(String url) {
         String response = HttpRetriever.retrieve(url);
         if (response == null) {
-            return null;
+            throw new ProviderException("Could not retrieve query results");
         }
 
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -261,12 +309,11 @@ public class YahooWeatherProvider implements WeatherProvider {
         }
 
         try {
-            JSONObject rootObject = new JSONObject(response);
-            return rootObject.getJSONObject("query").getJSONObject("results");
+            JSONObject query = new JSONObject(response).getJSONObject("query");
+            // No match is reported as "results": null
+            return query.isNull("results") ? null : query.getJSONObject("results");
         } catch (JSONException e) {
-            Log.w(TAG, "Received malformed places data", e);
+            throw new ProviderException("Received malformed query results", e);
         }
-
-        return null;
     }
 };